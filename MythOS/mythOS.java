@@ -13,10 +13,18 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 import javax.swing.*;
 import javax.swing.text.*;
 
@@ -36,6 +44,15 @@ public class mythOS {
         static final String PURPLE  = "\033[95m";
         static final String WHITE   = "\033[97m";
         static final String CLEAR   = "\033[H\033[2J";
+        static final String HOME    = "\033[H";
+        static final String ERASE_LINE  = "\033[K";     // to the end of the line
+        static final String ERASE_BELOW = "\033[J";     // to the end of the screen
+
+        private static final java.util.regex.Pattern CSI = java.util.regex.Pattern.compile("\033\\[[0-9;?]*[ -/]*[@-~]");
+
+        static String strip(String s) {
+            return s.indexOf('\033') < 0 ? s : CSI.matcher(s).replaceAll("");
+        }
     }
 
     /* ---------------------------------------------------- */
@@ -63,18 +80,27 @@ public class mythOS {
             GUI.instance.clearOutput();
         }
 
+        // Subsystems come up before the GUI exists; fall back to stderr until it does.
+        static void log(String msg) {
+            if (GUI.instance != null) GUI.instance.appendOutput(msg);
+            else System.err.print(msg);
+        }
+
         static void reboot() {
             GUI.instance.appendOutput("\nRebooting…\n");
             VFS.saveFilesystem();
-            try { Thread.sleep(800); } catch (Exception ignored) {}
-            GUI.instance.showTextMode();
-            boot();
+            javax.swing.Timer restart = new javax.swing.Timer(800, e -> {
+                GUI.instance.showTextMode();
+                boot();
+            });
+            restart.setRepeats(false);
+            restart.start();
         }
 
+        // Exit once the filesystem is safely on disk; the EDT stays free meanwhile.
         static void shutdown() {
             GUI.instance.appendOutput("\nShutting down mythOS…\n");
-            VFS.saveFilesystem();
-            System.exit(0);
+            VFS.saveFilesystem().whenComplete((nodes, err) -> System.exit(0));
         }
     }
 
@@ -84,29 +110,435 @@ public class mythOS {
     static class VFS {
         static VFS instance;
 
+        /* File body as fixed-size byte chunks, on the heap or, with
+         * -Dmythos.offheap=true, in direct buffers. Writes touch only the
+         * chunks they cover and the length is tracked incrementally. A body
+         * loaded from an FsImage stays in the mapped region until first written.
+         *
+         * With -Dmythos.compress=N, bodies of N bytes or more keep their chunks
+         * deflated: a chunk is packed once an append fills it, a whole-file
+         * rewrite packs the tail too, and reads inflate through a small shared
+         * cache of decoded blocks. Writing into a packed chunk unpacks it. */
+        static class ChunkStore {
+            static final int CHUNK = 16 * 1024;
+            static final boolean OFF_HEAP = Boolean.getBoolean("mythos.offheap");
+            static volatile int compressMin = Integer.getInteger("mythos.compress", 0);   // 0 = off
+
+            private static final int DECODED_BLOCKS = Integer.getInteger("mythos.compress.cache", 256);
+            private static final Map<Packed, byte[]> decoded = Collections.synchronizedMap(
+                    new LinkedHashMap<Packed, byte[]>(64, 0.75f, true) {
+                        @Override protected boolean removeEldestEntry(Map.Entry<Packed, byte[]> e) {
+                            return size() > DECODED_BLOCKS;
+                        }
+                    });
+
+            /* One chunk's bytes, deflated unless stored.remaining() == rawLength.
+             * Immutable, so copies of a store share them freely. */
+            static final class Packed {
+                final ByteBuffer stored;
+                final int rawLength;
+
+                Packed(ByteBuffer stored, int rawLength) {
+                    this.stored = stored;
+                    this.rawLength = rawLength;
+                }
+
+                boolean deflated() { return stored.remaining() < rawLength; }
+            }
+
+            private ByteBuffer[] chunks = new ByteBuffer[0];
+            private Packed[] packed = new Packed[0];    // packed[i] != null implies chunks[i] == null
+            private boolean[] shared;       // chunks also referenced by a cowCopy()
+            private ByteBuffer base;
+            private long length;
+
+            ChunkStore() {}
+
+            ChunkStore(ByteBuffer base) {
+                this.base = base;
+                this.length = base.remaining();
+            }
+
+            /* A body made entirely of packed chunks, as stored in an image. */
+            ChunkStore(java.util.List<Packed> blocks) {
+                chunks = new ByteBuffer[blocks.size()];
+                packed = blocks.toArray(new Packed[0]);
+                for (Packed b : packed) length += b.rawLength;
+            }
+
+            synchronized long length() { return length; }
+
+            synchronized int read(long pos, byte[] dst, int off, int len) {
+                if (pos >= length) return len == 0 ? 0 : -1;
+                len = (int) Math.min(len, length - pos);
+                if (base != null) {
+                    base.get((int) pos, dst, off, len);
+                    return len;
+                }
+                for (int done = 0; done < len; ) {
+                    long p = pos + done;
+                    int ci = (int) (p / CHUNK), co = (int) (p % CHUNK);
+                    int n = Math.min(len - done, CHUNK - co);
+                    Packed pk = ci < packed.length ? packed[ci] : null;
+                    if (pk == null) chunks[ci].get(co, dst, off + done, n);
+                    else if (!pk.deflated()) pk.stored.get(co, dst, off + done, n);
+                    else System.arraycopy(decode(pk), co, dst, off + done, n);
+                    done += n;
+                }
+                return len;
+            }
+
+            synchronized void write(long pos, byte[] src, int off, int len) {
+                materialize();
+                for (long p = length; p < pos; ) {           // zero-fill a gap past EOF
+                    int co = (int) (p % CHUNK);
+                    int n = (int) Math.min(pos - p, CHUNK - co);
+                    chunk((int) (p / CHUNK), co + n);
+                    p += n;
+                }
+                for (int done = 0; done < len; ) {
+                    long p = pos + done;
+                    int co = (int) (p % CHUNK);
+                    int n = Math.min(len - done, CHUNK - co);
+                    chunk((int) (p / CHUNK), co + n).put(co, src, off + done, n);
+                    done += n;
+                }
+                length = Math.max(length, pos + len);
+                int min = compressMin;
+                if (min > 0 && length >= min)
+                    for (long ci = pos / CHUNK; (ci + 1) * CHUNK <= pos + len; ci++) pack((int) ci);
+            }
+
+            synchronized void append(byte[] src, int off, int len) { write(length, src, off, len); }
+
+            synchronized void truncate(long newLength) {
+                if (newLength >= length) return;
+                materialize();
+                int keep = (int) ((newLength + CHUNK - 1) / CHUNK);
+                for (int i = keep; i < chunks.length; i++) chunks[i] = null;
+                for (int i = keep; i < packed.length; i++) packed[i] = null;
+                int tail = (int) (newLength % CHUNK);
+                if (tail > 0) {
+                    ByteBuffer c = chunk(keep - 1, tail);
+                    for (int i = tail; i < c.capacity(); i++) c.put(i, (byte) 0);
+                }
+                length = newLength;
+            }
+
+            synchronized byte[] toByteArray() {
+                if (length > Integer.MAX_VALUE - 8) throw new IllegalStateException("file too large");
+                byte[] b = new byte[(int) length];
+                read(0, b, 0, b.length);
+                return b;
+            }
+
+            /* Frozen copy sharing every chunk; whichever side writes a shared chunk copies it first. */
+            synchronized ChunkStore cowCopy() {
+                ChunkStore c = new ChunkStore();
+                c.base = base;
+                c.length = length;
+                c.chunks = chunks.clone();
+                c.packed = packed.clone();
+                c.shared = new boolean[chunks.length];
+                Arrays.fill(c.shared, true);
+                shared = c.shared.clone();
+                return c;
+            }
+
+            /* Read-only views over the body, in order, for bulk copies. */
+            synchronized java.util.List<ByteBuffer> buffers() {
+                if (base != null) return java.util.List.of(base.duplicate());
+                java.util.List<ByteBuffer> out = new java.util.ArrayList<>();
+                for (long p = 0; p < length; p += CHUNK) {
+                    int ci = (int) (p / CHUNK);
+                    Packed pk = ci < packed.length ? packed[ci] : null;
+                    ByteBuffer c = pk == null ? chunks[ci].asReadOnlyBuffer()
+                            : pk.deflated() ? ByteBuffer.wrap(decode(pk)).asReadOnlyBuffer() : pk.stored.duplicate();
+                    c.position(0).limit((int) Math.min(CHUNK, length - p));
+                    out.add(c.slice());
+                }
+                return out;
+            }
+
+            /* The body chunk by chunk, deflating any chunk not packed yet, for the image writer. */
+            synchronized java.util.List<Packed> blocks() {
+                materialize();
+                java.util.List<Packed> out = new java.util.ArrayList<>();
+                for (long p = 0; p < length; p += CHUNK) {
+                    int ci = (int) (p / CHUNK);
+                    Packed pk = ci < packed.length ? packed[ci] : null;
+                    if (pk == null) {
+                        ByteBuffer raw = chunks[ci].duplicate();
+                        raw.position(0).limit((int) Math.min(CHUNK, length - p));
+                        pk = deflate(raw);
+                    }
+                    out.add(pk);
+                }
+                return out;
+            }
+
+            synchronized boolean isPacked() {
+                for (Packed pk : packed) if (pk != null) return true;
+                return false;
+            }
+
+            /* Bytes held for the body on the heap or in direct buffers; a mapped body counts as none. */
+            synchronized long footprint() {
+                long n = 0;
+                for (ByteBuffer c : chunks) if (c != null) n += c.capacity();
+                for (Packed pk : packed) if (pk != null && !pk.stored.isDirect()) n += pk.stored.capacity();
+                return n;
+            }
+
+            /* Packs every chunk, including a partial tail. */
+            synchronized void pack() {
+                materialize();
+                for (int ci = 0; (long) ci * CHUNK < length; ci++) pack(ci);
+            }
+
+            private void pack(int ci) {
+                ByteBuffer c = ci < chunks.length ? chunks[ci] : null;
+                if (c == null) return;
+                ByteBuffer raw = c.duplicate();
+                raw.position(0).limit((int) Math.min(CHUNK, length - (long) ci * CHUNK));
+                Packed pk = deflate(raw);
+                if (!pk.deflated()) return;                 // incompressible: leave it as is
+                if (ci >= packed.length) packed = Arrays.copyOf(packed, chunks.length);
+                packed[ci] = pk;
+                chunks[ci] = null;
+            }
+
+            private static Packed deflate(ByteBuffer raw) {
+                int n = raw.remaining();
+                java.util.zip.Deflater d = new java.util.zip.Deflater(java.util.zip.Deflater.BEST_SPEED);
+                try {
+                    d.setInput(raw.duplicate());
+                    d.finish();
+                    byte[] out = new byte[n];
+                    int got = 0;
+                    while (!d.finished() && got < n) got += d.deflate(out, got, n - got);
+                    if (d.finished() && got < n) return new Packed(ByteBuffer.wrap(Arrays.copyOf(out, got)), n);
+                } finally {
+                    d.end();
+                }
+                byte[] copy = new byte[n];
+                raw.duplicate().get(copy);
+                return new Packed(ByteBuffer.wrap(copy), n);
+            }
+
+            private static byte[] decode(Packed pk) {
+                byte[] b = decoded.get(pk);
+                if (b != null) return b;
+                java.util.zip.Inflater inf = new java.util.zip.Inflater();
+                try {
+                    inf.setInput(pk.stored.duplicate());
+                    b = new byte[pk.rawLength];
+                    int got = 0;
+                    while (got < b.length && !inf.finished()) got += inf.inflate(b, got, b.length - got);
+                    if (got != b.length) throw new IllegalStateException("corrupt compressed chunk");
+                } catch (java.util.zip.DataFormatException e) {
+                    throw new IllegalStateException("corrupt compressed chunk", e);
+                } finally {
+                    inf.end();
+                }
+                decoded.put(pk, b);
+                return b;
+            }
+
+            private void materialize() {
+                if (base == null) return;
+                ByteBuffer b = base;
+                base = null;
+                length = 0;
+                byte[] tmp = new byte[CHUNK];
+                for (int p = 0; p < b.remaining(); p += CHUNK) {
+                    int n = Math.min(CHUNK, b.remaining() - p);
+                    b.get(p, tmp, 0, n);
+                    write(p, tmp, 0, n);
+                }
+            }
+
+            /* Only the last chunk may be smaller than CHUNK; it grows geometrically. */
+            private ByteBuffer chunk(int ci, int need) {
+                if (ci >= chunks.length) chunks = Arrays.copyOf(chunks, Math.max(ci + 1, chunks.length * 2));
+                if (ci < packed.length && packed[ci] != null) {
+                    Packed pk = packed[ci];
+                    ByteBuffer c = OFF_HEAP ? ByteBuffer.allocateDirect(Math.max(need, pk.rawLength))
+                                            : ByteBuffer.allocate(Math.max(need, pk.rawLength));
+                    if (pk.deflated()) c.put(0, decode(pk));
+                    else c.put(0, pk.stored, 0, pk.rawLength);
+                    packed[ci] = null;
+                    chunks[ci] = c;
+                    if (shared != null && ci < shared.length) shared[ci] = false;
+                }
+                ByteBuffer c = chunks[ci];
+                if (shared != null && ci < shared.length && shared[ci]) {
+                    shared[ci] = false;
+                    need = Math.max(need, c == null ? 0 : c.capacity());
+                    chunks[ci] = null;
+                    ByteBuffer copy = OFF_HEAP ? ByteBuffer.allocateDirect(need) : ByteBuffer.allocate(need);
+                    if (c != null) copy.put(0, c, 0, c.capacity());
+                    chunks[ci] = c = copy;
+                }
+                if (c == null || c.capacity() < need) {
+                    int cap = Math.min(CHUNK, Math.max(need, c == null ? 64 : c.capacity() * 2));
+                    ByteBuffer n = OFF_HEAP ? ByteBuffer.allocateDirect(cap) : ByteBuffer.allocate(cap);
+                    if (c != null) n.put(0, c, 0, c.capacity());
+                    chunks[ci] = c = n;
+                }
+                return c;
+            }
+        }
+
         static class FileNode implements Serializable {
-            String name;
-            FileNode parent;
-            Map<String, FileNode> children = new HashMap<>();
-            String content = "";
-            long size = 0;
+            private static final long serialVersionUID = 8070432095981831800L;  // v1.5.1 images
+
+            volatile String name;
+            volatile FileNode parent;
+            ConcurrentNavigableMap<String, FileNode> children = new ConcurrentSkipListMap<>();
+            private transient volatile ConcurrentSkipListMap<String, FileNode> bySuffix;   // reversed names
+            transient volatile ChunkStore data = new ChunkStore();
+            volatile long size = 0;
             long created = System.currentTimeMillis();
-            long modified = created;
+            volatile long modified = created;
             int permissions = 0644;
             String owner = "root";
             String group = "root";
             boolean isDirectory = false;
 
+            private record PathMemo(String path, int gen) {}
+            private transient volatile PathMemo pathMemo;
+
             FileNode(String name, FileNode parent, boolean isDirectory) {
-                this.name = name;
+                this.name = name.intern();
                 this.parent = parent;
                 this.isDirectory = isDirectory;
             }
 
+            /* Child-map mutations go through these three so the suffix index stays in step. */
+            FileNode putChildIfAbsent(FileNode c) {
+                FileNode prev = children.putIfAbsent(c.name, c);
+                ConcurrentSkipListMap<String, FileNode> idx = bySuffix;
+                if (prev == null && idx != null) idx.put(reversed(c.name), c);
+                return prev;
+            }
+
+            void putChild(FileNode c) {
+                children.put(c.name, c);
+                ConcurrentSkipListMap<String, FileNode> idx = bySuffix;
+                if (idx != null) idx.put(reversed(c.name), c);
+            }
+
+            boolean removeChild(FileNode c) {
+                if (!children.remove(c.name, c)) return false;
+                ConcurrentSkipListMap<String, FileNode> idx = bySuffix;
+                if (idx != null) idx.remove(reversed(c.name), c);
+                return true;
+            }
+
+            /* Children whose name starts with prefix, in name order. */
+            Collection<FileNode> withPrefix(String prefix) {
+                if (prefix.isEmpty()) return children.values();
+                return children.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values();
+            }
+
+            /* Children whose name ends with suffix, or null if no suffix index was built. */
+            Collection<FileNode> withSuffix(String suffix) {
+                ConcurrentSkipListMap<String, FileNode> idx = bySuffix;
+                if (idx == null) return null;
+                String r = reversed(suffix);
+                return idx.subMap(r, true, r + Character.MAX_VALUE, false).values();
+            }
+
+            private static String reversed(String s) { return new StringBuilder(s).reverse().toString(); }
+
+            String content() {
+                byte[] b = data.toByteArray();
+                MythProcess.chargeRead(b.length);
+                return new String(b, StandardCharsets.UTF_8);
+            }
+
+            void setContent(String c) {
+                byte[] b = (c == null) ? new byte[0] : c.getBytes(StandardCharsets.UTF_8);
+                ChunkStore fresh = new ChunkStore();
+                fresh.append(b, 0, b.length);
+                int min = ChunkStore.compressMin;
+                if (min > 0 && b.length >= min) fresh.pack();
+                data = fresh;
+                size = b.length;
+            }
+
+            InputStream openStream() {
+                return new InputStream() {
+                    final ChunkStore src = data;
+                    long pos;
+
+                    @Override public int read() {
+                        byte[] one = new byte[1];
+                        return read(one, 0, 1) <= 0 ? -1 : one[0] & 0xFF;
+                    }
+
+                    @Override public int read(byte[] b, int off, int len) {
+                        MythProcess.checkSignals();
+                        int n = src.read(pos, b, off, len);
+                        if (n > 0) {
+                            pos += n;
+                            MythProcess.chargeRead(n);
+                        }
+                        return n;
+                    }
+                };
+            }
+
+            void append(byte[] b, int off, int len) {
+                data.append(b, off, len);
+                size = data.length();
+            }
+
+            void write(long pos, byte[] b, int off, int len) {
+                data.write(pos, b, off, len);
+                size = data.length();
+            }
+
+            void truncate(long length) {
+                data.truncate(length);
+                size = data.length();
+            }
+
+            /* v1.5.1 images serialized the body as a String field named "content". */
+            @SuppressWarnings("unchecked")
+            private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+                ObjectInputStream.GetField f = in.readFields();
+                name = ((String) f.get("name", "")).intern();
+                parent = (FileNode) f.get("parent", null);
+                children = new ConcurrentSkipListMap<>((Map<String, FileNode>) f.get("children", new HashMap<>()));
+                created = f.get("created", 0L);
+                modified = f.get("modified", 0L);
+                permissions = f.get("permissions", 0644);
+                owner = (String) f.get("owner", "root");
+                group = (String) f.get("group", "root");
+                isDirectory = f.get("isDirectory", false);
+                data = new ChunkStore();
+                setContent((String) f.get("content", ""));
+            }
+
+            /* Cached until any rename bumps VFS.moves, which may have moved an ancestor. */
             String path() {
-                if (parent == null) return "/";
-                if (parent.parent == null) return "/" + name;
-                return parent.path() + "/" + name;
+                int gen = VFS.moves;
+                PathMemo m = pathMemo;
+                if (m != null && m.gen == gen) return m.path;
+                FileNode up = parent;
+                String p;
+                if (up == null) p = "/";
+                else if (up.parent == null) p = "/" + name;
+                else p = up.path() + "/" + name;
+                pathMemo = new PathMemo(p, gen);
+                return p;
+            }
+
+            boolean isUnder(FileNode dir) {
+                for (FileNode up = parent; up != null; up = up.parent) if (up == dir) return true;
+                return false;
             }
 
             String modeString() {
@@ -125,9 +557,418 @@ public class mythOS {
             }
         }
 
-        FileNode root = new FileNode("", null, true);
-        FileNode cwd = root;
+        /* Point-in-time view of the tree for a background checkpoint. Taking
+         * one is O(1); nodes are captured lazily, either by the image writer
+         * as it walks or by a mutator just before its first change to a node,
+         * whichever comes first. File bodies are shared copy-on-write. */
+        static class Snapshot {
+            final long seq;
+            final FileNode root;
+            private final ConcurrentHashMap<FileNode, Frozen> frozen = new ConcurrentHashMap<>();
+
+            Snapshot(long seq, FileNode root) {
+                this.seq = seq;
+                this.root = root;
+            }
+
+            Frozen of(FileNode n) { return frozen.computeIfAbsent(n, Frozen::new); }
+        }
+
+        static final class Frozen {
+            final String name, owner, group;
+            final boolean isDirectory;
+            final int permissions;
+            final long created, modified;
+            final ChunkStore data;
+            final java.util.List<FileNode> children;
+
+            Frozen(FileNode n) {
+                name = n.name;
+                owner = n.owner;
+                group = n.group;
+                isDirectory = n.isDirectory;
+                permissions = n.permissions;
+                created = n.created;
+                modified = n.modified;
+                data = n.isDirectory ? null : n.data.cowCopy();
+                children = n.isDirectory ? new java.util.ArrayList<>(n.children.values()) : java.util.List.of();
+            }
+        }
+
+        /* Versioned binary image: header | content region | metadata.
+         * Metadata (names, parent indices, mode, owner, times) is parsed at
+         * boot; file bodies stay in the mapped content region until
+         * FileNode.content() first touches them. */
+        static class FsImage {
+            static final int MAGIC = 0x4D594653;   // "MYFS"
+            static final short VERSION = 3;     // 2 adds PACKED bodies, 3 int string lengths; 1 and 2 are still read
+            static final int HEADER = 4 + 2 + 8 + 4 + 8;
+            static final byte DIR = 1, PACKED = 2;
+
+            FileNode root;
+            long seq;
+
+            /* Writes the tree as of snap; safe to run while the live tree keeps changing. */
+            static int write(Snapshot snap, Path file) throws IOException {
+                java.util.List<Frozen> nodes = new java.util.ArrayList<>();
+                java.util.List<Integer> parents = new java.util.ArrayList<>();
+                Deque<Object[]> stack = new ArrayDeque<>();
+                stack.push(new Object[] { snap.root, -1 });
+                while (!stack.isEmpty()) {
+                    Object[] e = stack.pop();
+                    Frozen f = snap.of((FileNode) e[0]);
+                    int idx = nodes.size();
+                    nodes.add(f);
+                    parents.add((Integer) e[1]);
+                    for (FileNode c : f.children) stack.push(new Object[] { c, idx });
+                }
+                long[] offsets = new long[nodes.size()];
+                long[] sizes = new long[nodes.size()];
+                boolean[] packed = new boolean[nodes.size()];
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long pos = HEADER;
+                    for (int i = 0; i < nodes.size(); i++) {
+                        Frozen n = nodes.get(i);
+                        if (n.isDirectory) continue;
+                        offsets[i] = pos;
+                        int min = ChunkStore.compressMin;
+                        packed[i] = n.data.isPacked() || (min > 0 && n.data.length() >= min);
+                        if (packed[i]) {
+                            // Per chunk: [raw length][stored length][bytes], deflated when stored < raw.
+                            for (ChunkStore.Packed b : n.data.blocks()) {
+                                ByteBuffer h = ByteBuffer.allocate(8).putInt(b.rawLength).putInt(b.stored.remaining()).flip();
+                                while (h.hasRemaining()) pos += ch.write(h, pos);
+                                ByteBuffer body = b.stored.duplicate();
+                                while (body.hasRemaining()) pos += ch.write(body, pos);
+                            }
+                        } else {
+                            for (ByteBuffer body : n.data.buffers())
+                                while (body.hasRemaining()) pos += ch.write(body, pos);
+                        }
+                        sizes[i] = pos - offsets[i];
+                    }
+                    long metaOffset = pos;
+                    ch.position(metaOffset);
+                    DataOutputStream meta = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16));
+                    for (int i = 0; i < nodes.size(); i++) {
+                        Frozen n = nodes.get(i);
+                        meta.writeInt(parents.get(i));
+                        meta.writeByte((n.isDirectory ? DIR : 0) | (packed[i] ? PACKED : 0));
+                        meta.writeShort(n.permissions);
+                        meta.writeLong(n.created);
+                        meta.writeLong(n.modified);
+                        meta.writeLong(sizes[i]);
+                        meta.writeLong(offsets[i]);
+                        writeString(meta, n.name);
+                        writeString(meta, n.owner);
+                        writeString(meta, n.group);
+                    }
+                    meta.flush();
+                    ByteBuffer h = ByteBuffer.allocate(HEADER);
+                    h.putInt(MAGIC).putShort(VERSION).putLong(snap.seq).putInt(nodes.size()).putLong(metaOffset).flip();
+                    ch.write(h, 0);
+                    ch.force(true);
+                }
+                return nodes.size();
+            }
+
+            /* Returns null when the file is not a binary image (legacy serialized tree). */
+            static FsImage read(Path file) throws IOException {
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                    if (ch.size() < HEADER) return null;
+                    if (ch.size() > Integer.MAX_VALUE) throw new IOException("image too large to map");
+                    MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                    if (buf.getInt(0) != MAGIC) return null;
+                    short version = buf.getShort(4);
+                    if (version < 1 || version > VERSION) throw new IOException("unsupported image version " + version);
+                    FsImage img = new FsImage();
+                    img.seq = buf.getLong(6);
+                    FileNode[] nodes = new FileNode[buf.getInt(14)];
+                    ByteBuffer m = buf.duplicate();
+                    m.position((int) buf.getLong(18));
+                    for (int i = 0; i < nodes.length; i++) {
+                        int parent = m.getInt();
+                        byte flags = m.get();
+                        boolean dir = (flags & DIR) != 0;
+                        int perms = m.getShort() & 0xFFFF;
+                        long created = m.getLong(), modified = m.getLong(), size = m.getLong(), off = m.getLong();
+                        FileNode p = parent < 0 ? null : nodes[parent];
+                        FileNode n = new FileNode(readString(m, version), p, dir);
+                        n.owner = readString(m, version);
+                        n.group = readString(m, version);
+                        n.permissions = perms;
+                        n.created = created;
+                        n.modified = modified;
+                        n.size = size;
+                        if (!dir && (flags & PACKED) == 0) {
+                            n.data = new ChunkStore(buf.slice((int) off, (int) size));
+                        } else if (!dir) {
+                            java.util.List<ChunkStore.Packed> blocks = new java.util.ArrayList<>();
+                            for (int at = (int) off; at < off + size; ) {
+                                int raw = buf.getInt(at), stored = buf.getInt(at + 4);
+                                blocks.add(new ChunkStore.Packed(buf.slice(at + 8, stored), raw));
+                                at += 8 + stored;
+                            }
+                            n.data = new ChunkStore(blocks);
+                            n.size = n.data.length();       // the stored size is the packed length
+                        }
+                        if (p != null) p.putChild(n);
+                        nodes[i] = n;
+                    }
+                    img.root = nodes[0];
+                    return img;
+                }
+            }
+
+            private static void writeString(DataOutputStream o, String s) throws IOException {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                o.writeInt(b.length);
+                o.write(b);
+            }
+
+            private static String readString(ByteBuffer m, short version) {
+                byte[] b = new byte[version < 3 ? m.getShort() & 0xFFFF : m.getInt()];
+                m.get(b);
+                return new String(b, StandardCharsets.UTF_8);
+            }
+        }
+
+        /* Append-only log of tree mutations. Every record is
+         * [len][crc32][seq, op, path, args…]; a torn or corrupt tail
+         * (crash mid-write) is dropped on replay. */
+        static class Journal {
+            static final byte MKDIR = 1, TOUCH = 2, RM = 3, CHMOD = 4, CHOWN = 5,
+                              WRITE = 6, TRUNCATE = 7, RENAME = 8;
+            private static final int MAX_RECORD = 64 << 20;
+
+            private final Path file, rotated;
+            private FileChannel channel;
+            private DataOutputStream out;
+            private final ByteArrayOutputStream rec = new ByteArrayOutputStream(256);
+            private final DataOutputStream recOut = new DataOutputStream(rec);
+            private final CRC32 crc = new CRC32();
+            long seq;
+            long bytes;
+
+            private Journal(Path file, long seq, long validLength) throws IOException {
+                this.file = file;
+                this.rotated = file.resolveSibling(file.getFileName() + ".old");
+                this.seq = seq;
+                openChannel(validLength);
+            }
+
+            private void openChannel(long validLength) throws IOException {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                channel.truncate(validLength);
+                channel.position(validLength);
+                bytes = validLength;
+                out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 8192));
+            }
+
+            /* Replays every record newer than checkpointSeq into vfs (a segment
+             * rotated out by an unfinished checkpoint first), then opens the log
+             * for appending. */
+            static Journal open(Path file, long checkpointSeq, VFS vfs) throws IOException {
+                long[] seq = { checkpointSeq };
+                replay(file.resolveSibling(file.getFileName() + ".old"), seq, vfs);
+                long valid = replay(file, seq, vfs);
+                return new Journal(file, seq[0], valid);
+            }
+
+            /* Returns the length of the intact prefix of the segment. */
+            private static long replay(Path segment, long[] seq, VFS vfs) throws IOException {
+                long valid = 0;
+                if (!Files.exists(segment)) return 0;
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+                    while (true) {
+                        int len = in.readInt();
+                        int sum = in.readInt();
+                        if (len <= 0 || len > MAX_RECORD) break;
+                        byte[] buf = new byte[len];
+                        in.readFully(buf);
+                        CRC32 c = new CRC32();
+                        c.update(buf);
+                        if ((int) c.getValue() != sum) break;
+                        DataInputStream r = new DataInputStream(new ByteArrayInputStream(buf));
+                        long s = r.readLong();
+                        if (s > seq[0]) { apply(vfs, r.readByte(), r); seq[0] = s; }
+                        valid += 8 + len;
+                    }
+                } catch (EOFException tail) { /* end of log or torn record */ }
+                return valid;
+            }
+
+            private static void apply(VFS vfs, byte op, DataInputStream r) throws IOException {
+                String path = readString(r);
+                switch (op) {
+                    case MKDIR -> vfs.mkdir(path);
+                    case TOUCH -> vfs.touch(path, readString(r));
+                    case RM    -> vfs.rm(path);
+                    case CHMOD -> vfs.chmod(path, r.readInt());
+                    case CHOWN -> vfs.chown(path, readString(r), readString(r));
+                    case RENAME -> vfs.rename(path, readString(r));
+                    case WRITE -> {
+                        long pos = r.readLong();
+                        byte[] b = new byte[r.readInt()];
+                        r.readFully(b);
+                        vfs.resolvePath(path).ifPresent(f -> vfs.write(f, pos, b, 0, b.length));
+                    }
+                    case TRUNCATE -> {
+                        long len = r.readLong();
+                        vfs.resolvePath(path).ifPresent(f -> vfs.truncate(f, len));
+                    }
+                    default    -> throw new IOException("bad journal op " + op);
+                }
+            }
+
+            synchronized void append(byte op, String path, int mode, String... args) {
+                try {
+                    begin(op, path);
+                    if (op == CHMOD) recOut.writeInt(mode);
+                    for (String a : args) writeString(recOut, a);
+                    commit();
+                } catch (IOException e) {
+                    Kernel.log(ANSI.RED + "journal: " + e.getMessage() + ANSI.RESET + "\n");
+                }
+            }
+
+            /* WRITE carries only the written range, so appends cost O(delta). */
+            synchronized void appendData(byte op, String path, long pos, byte[] b, int off, int len) {
+                try {
+                    begin(op, path);
+                    recOut.writeLong(pos);
+                    if (op == WRITE) {
+                        recOut.writeInt(len);
+                        recOut.write(b, off, len);
+                    }
+                    commit();
+                } catch (IOException e) {
+                    Kernel.log(ANSI.RED + "journal: " + e.getMessage() + ANSI.RESET + "\n");
+                }
+            }
+
+            private void begin(byte op, String path) throws IOException {
+                rec.reset();
+                recOut.writeLong(seq + 1);
+                recOut.writeByte(op);
+                writeString(recOut, path);
+            }
+
+            private void commit() throws IOException {
+                byte[] buf = rec.toByteArray();
+                crc.reset();
+                crc.update(buf);
+                out.writeInt(buf.length);
+                out.writeInt((int) crc.getValue());
+                out.write(buf);
+                out.flush();
+                seq++;
+                bytes += 8 + buf.length;
+            }
+
+            synchronized void sync() throws IOException {
+                out.flush();
+                channel.force(false);
+            }
+
+            /* Starts a fresh segment at a checkpoint boundary. If the last
+             * checkpoint never finished, its rotated segment is still needed,
+             * so logging simply continues in the current one. */
+            synchronized void rotate() throws IOException {
+                if (Files.exists(rotated)) return;
+                out.flush();
+                channel.force(false);
+                channel.close();
+                Files.move(file, rotated, StandardCopyOption.ATOMIC_MOVE);
+                openChannel(0);
+            }
+
+            /* Called once a checkpoint covering the rotated segment is on disk. */
+            void dropRotated() throws IOException {
+                Files.deleteIfExists(rotated);
+            }
+
+            private static void writeString(DataOutputStream o, String s) throws IOException {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                o.writeInt(b.length);
+                o.write(b);
+            }
+
+            private static String readString(DataInputStream in) throws IOException {
+                byte[] b = new byte[in.readInt()];
+                in.readFully(b);
+                return new String(b, StandardCharsets.UTF_8);
+            }
+        }
+
+        /* Bounded map of normalized absolute path -> node, shedding an arbitrary
+         * eighth when full. Only successful lookups are cached, so mkdir/touch
+         * can never leave a stale entry; rm and rename drop the affected path
+         * and, for directories, its subtree. */
+        static class DentryCache {
+            private final ConcurrentHashMap<String, FileNode> map = new ConcurrentHashMap<>();
+            private final java.util.concurrent.atomic.AtomicInteger epoch = new java.util.concurrent.atomic.AtomicInteger();
+            private final int capacity;
+
+            DentryCache(int capacity) { this.capacity = capacity; }
+
+            FileNode get(String path) { return map.get(path); }
+            int epoch() { return epoch.get(); }
+            void clear() { epoch.incrementAndGet(); map.clear(); }
+
+            /* A lookup that raced with an invalidation (epoch moved) withdraws its entry. */
+            void put(String path, FileNode n, int seenEpoch) {
+                if (map.size() >= capacity) {
+                    Iterator<String> it = map.keySet().iterator();
+                    for (int drop = capacity / 8; drop > 0 && it.hasNext(); drop--) { it.next(); it.remove(); }
+                }
+                map.put(path, n);
+                if (epoch.get() != seenEpoch) map.remove(path, n);
+            }
+
+            /* Callers detach the node from the tree first. */
+            void invalidate(String path, boolean subtree) {
+                epoch.incrementAndGet();
+                map.remove(path);
+                if (!subtree) return;
+                String prefix = path.endsWith("/") ? path : path + "/";
+                map.keySet().removeIf(k -> k.startsWith(prefix));
+            }
+        }
+
+        static volatile int moves;      // bumped on rename; invalidates cached FileNode.path()
+
+        /* Concurrency: lookups are lock-free over concurrent child maps.
+         * Mutations hold treeLock shared plus the stripe of the parent
+         * directory they touch, so writers in different directories run in
+         * parallel and journal records for one directory stay in order.
+         * rename and checkpointing hold treeLock exclusively. */
+        private final ReentrantReadWriteLock treeLock = new ReentrantReadWriteLock();
+        private final ReentrantLock[] stripes = new ReentrantLock[64];
+        {
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new ReentrantLock();
+        }
+
+        final DentryCache dcache = new DentryCache(Integer.getInteger("mythos.dcache", 4096));
+        final SearchIndex index = new SearchIndex(this);
+        private volatile Snapshot active;                 // checkpoint in progress
+        private final java.util.concurrent.atomic.AtomicLong changes = new java.util.concurrent.atomic.AtomicLong();
+        private long checkpointedChanges;
+        private final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vfs-checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        volatile FileNode root = new FileNode("", null, true);
+        volatile FileNode cwd = root;
+        Journal journal;
+        boolean replaying = false;
         private static final String FS_FILE = "mythos.fs";
+        private static final String JOURNAL_FILE = "mythos.journal";
+        static final boolean JOURNALED = !"false".equals(System.getProperty("mythos.journal"));
+        static final long COMPACT_THRESHOLD = 1 << 20;
+        static final long CHECKPOINT_INTERVAL = Long.getLong("mythos.checkpoint.interval", 30);
 
         VFS() {
             mkdir("/bin"); 	mkdir("/etc"); 	mkdir("/home");
@@ -135,128 +976,859 @@ public class mythOS {
             touch("/etc/motd", "Welcome to mythOS\n");
             touch("/etc/issue", "mythOS v1.5.1 \\n \\l");
             loadFilesystem();
+            checkpointer.scheduleWithFixedDelay(() -> {
+                boolean due = journal != null ? journal.bytes >= COMPACT_THRESHOLD : changes.get() != checkpointedChanges;
+                if (due) checkpoint();
+            }, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.SECONDS);
         }
 
         void loadFilesystem() {
+            long seq = 0;
             Path p = Path.of(FS_FILE);
-            if (!Files.exists(p)) return;
-            try (ObjectInputStream ois = new ObjectInputStream(Files.newInputStream(p))) {
-                root = (FileNode) ois.readObject();
-                cwd = resolvePath("/").orElse(root);
-            } catch (Exception e) {
-                GUI.instance.appendOutput(ANSI.YELLOW + "Warning: failed to load FS: " + e.getMessage() + ANSI.RESET + "\n");
+            if (Files.exists(p)) {
+                try {
+                    FsImage img = FsImage.read(p);
+                    if (img != null) { root = img.root; seq = img.seq; }
+                    else root = readLegacyImage(p);
+                    dcache.clear();
+                    cwd = resolvePath("/").orElse(root);
+                } catch (Exception e) {
+                    Kernel.log(ANSI.YELLOW + "Warning: failed to load FS: " + e.getMessage() + ANSI.RESET + "\n");
+                }
+            }
+            if (!JOURNALED) return;
+            replaying = true;
+            try {
+                journal = Journal.open(Path.of(JOURNAL_FILE), seq, this);
+            } catch (IOException e) {
+                Kernel.log(ANSI.YELLOW + "Warning: journal unavailable: " + e.getMessage() + ANSI.RESET + "\n");
+            } finally {
+                replaying = false;
+            }
+        }
+
+        /* Images written before FsImage were a plain serialized FileNode graph. */
+        private static FileNode readLegacyImage(Path p) throws IOException, ClassNotFoundException {
+            try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(p)))) {
+                return (FileNode) ois.readObject();
             }
         }
 
-        static void saveFilesystem() {
-            try (ObjectOutputStream oos = new ObjectOutputStream(Files.newOutputStream(Path.of(FS_FILE)))) {
-                oos.writeObject(instance.root);
-            } catch (Exception e) {
-                GUI.instance.appendOutput(ANSI.RED + "Error saving FS: " + e.getMessage() + ANSI.RESET + "\n");
+        /* Durability point. With the journal this is only an fsync of the
+         * log; without it, a full checkpoint is queued in the background. */
+        static CompletableFuture<Integer> saveFilesystem() {
+            if (instance.journal != null) {
+                try {
+                    instance.journal.sync();
+                    return CompletableFuture.completedFuture(0);
+                } catch (IOException e) {
+                    Kernel.log(ANSI.RED + "Error saving FS: " + e.getMessage() + ANSI.RESET + "\n");
+                    return CompletableFuture.failedFuture(e);
+                }
             }
+            return instance.checkpoint();
+        }
+
+        /* Writes a point-in-time image on the checkpoint thread. The tree is
+         * frozen only for the O(1) snapshot hand-off; the image goes to a temp
+         * file that is atomically renamed over FS_FILE, after which the journal
+         * segment it covers is dropped. Completes with the node count. */
+        CompletableFuture<Integer> checkpoint() {
+            CompletableFuture<Integer> done = new CompletableFuture<>();
+            checkpointer.execute(() -> {
+                Snapshot snap;
+                long changesAtSnap;
+                treeLock.writeLock().lock();
+                try {
+                    if (journal != null) journal.rotate();
+                    snap = new Snapshot(journal == null ? 0 : journal.seq, root);
+                    changesAtSnap = changes.get();
+                    active = snap;
+                } catch (IOException e) {
+                    Kernel.log(ANSI.RED + "checkpoint: " + e.getMessage() + ANSI.RESET + "\n");
+                    done.completeExceptionally(e);
+                    return;
+                } finally {
+                    treeLock.writeLock().unlock();
+                }
+                try {
+                    Path tmp = Path.of(FS_FILE + ".tmp");
+                    int nodes = FsImage.write(snap, tmp);
+                    Files.move(tmp, Path.of(FS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    if (journal != null) journal.dropRotated();
+                    checkpointedChanges = changesAtSnap;
+                    done.complete(nodes);
+                } catch (IOException e) {
+                    Kernel.log(ANSI.RED + "checkpoint: " + e.getMessage() + ANSI.RESET + "\n");
+                    done.completeExceptionally(e);
+                } finally {
+                    active = null;
+                }
+            });
+            return done;
+        }
+
+        /* Every mutation calls this before its first change to a node. */
+        private void preserve(FileNode n) {
+            changes.incrementAndGet();
+            Snapshot s = active;
+            if (s != null) s.of(n);
+        }
+
+        private ReentrantLock stripe(FileNode dir) {
+            return stripes[(System.identityHashCode(dir) & 0x7fffffff) % stripes.length];
+        }
+
+        private final ThreadLocal<Boolean> quiet = ThreadLocal.withInitial(() -> false);
+
+        /* Diagnostics go to the calling process's stderr. */
+        private void report(String msg) {
+            if (replaying || quiet.get()) return;
+            if (GUI.instance != null) Stdio.current().printErr(msg);
+            else System.err.print(msg);
+        }
+
+        /* Runs op with this thread's VFS diagnostics suppressed. */
+        void quietly(Runnable op) {
+            quiet.set(true);
+            try { op.run(); } finally { quiet.set(false); }
         }
 
         Optional<FileNode> resolvePath(String path) {
             if (path.equals("/")) return Optional.of(root);
-            return path.startsWith("/") ? resolveAbsolute(path) : resolveRelative(path);
+            boolean abs = path.startsWith("/");
+            String key = null;
+            FileNode base = abs ? root : cwd;
+            int epoch = dcache.epoch();
+            if (canonical(path)) {
+                key = abs ? path : base.parent == null ? "/" + path : base.path() + "/" + path;
+                FileNode hit = dcache.get(key);
+                if (hit != null) return Optional.of(hit);
+            }
+            FileNode n = walk(base, path);
+            if (n != null && key != null) dcache.put(key, n, epoch);
+            return Optional.ofNullable(n);
         }
 
-        private Optional<FileNode> resolveAbsolute(String path) {
-            String[] parts = path.substring(1).split("/");
-            FileNode cur = root;
-            for (String p : parts) {
-                if (p.isEmpty()) continue;
-                if (p.equals("..")) { if (cur.parent != null) cur = cur.parent; }
-                else if (!p.equals(".")) {
-                    if (!cur.children.containsKey(p)) return Optional.empty();
-                    cur = cur.children.get(p);
-                }
+        /* No empty, "." or ".." components: the path is already its own cache key. */
+        private static boolean canonical(String path) {
+            if (path.isEmpty() || path.endsWith("/")) return false;
+            for (int i = path.startsWith("/") ? 1 : 0, j; i <= path.length(); i = j + 1) {
+                j = path.indexOf('/', i);
+                if (j < 0) j = path.length();
+                int len = j - i;
+                if (len == 0) return false;
+                if (path.charAt(i) == '.' && (len == 1 || (len == 2 && path.charAt(i + 1) == '.'))) return false;
             }
-            return Optional.of(cur);
+            return true;
         }
 
-        private Optional<FileNode> resolveRelative(String path) {
-            String[] parts = path.split("/");
-            FileNode cur = cwd;
-            for (String p : parts) {
-                if (p.isEmpty()) continue;
+        private static FileNode walk(FileNode cur, String path) {
+            for (int i = 0, j; i <= path.length(); i = j + 1) {
+                j = path.indexOf('/', i);
+                if (j < 0) j = path.length();
+                if (j == i) continue;
+                String p = path.substring(i, j);
                 if (p.equals("..")) { if (cur.parent != null) cur = cur.parent; }
                 else if (!p.equals(".")) {
-                    if (!cur.children.containsKey(p)) return Optional.empty();
                     cur = cur.children.get(p);
+                    if (cur == null) return null;
                 }
             }
-            return Optional.of(cur);
+            return cur;
         }
 
         void mkdir(String path) {
             String[] parts = path.split("/");
-            FileNode cur = root;
-            for (int i = 0; i < parts.length; i++) {
-                String part = parts[i];
-                if (part.isEmpty()) continue;
-                if (i == parts.length - 1) {
-                    if (cur.children.containsKey(part)) {
-                        GUI.instance.appendOutput("mkdir: '" + path + "': File exists\n");
-                        return;
-                    }
-                    cur.children.put(part, new FileNode(part, cur, true));
-                } else {
-                    FileNode next = cur.children.get(part);
-                    if (next == null) {
-                        GUI.instance.appendOutput("mkdir: '" + path + "': No such directory\n");
-                        return;
-                    }
-                    if (!next.isDirectory) {
-                        GUI.instance.appendOutput("mkdir: '" + path + "': Not a directory\n");
-                        return;
+            treeLock.readLock().lock();
+            try {
+                FileNode cur = root;
+                for (int i = 0; i < parts.length; i++) {
+                    String part = parts[i];
+                    if (part.isEmpty()) continue;
+                    if (i == parts.length - 1) {
+                        FileNode parent = cur;
+                        ReentrantLock l = stripe(parent);
+                        l.lock();
+                        try {
+                            FileNode dir = new FileNode(part, parent, true);
+                            preserve(parent);
+                            if (parent.putChildIfAbsent(dir) != null) {
+                                report("mkdir: '" + path + "': File exists\n");
+                                return;
+                            }
+                            index.created(dir);
+                            if (journal != null) journal.append(Journal.MKDIR, dir.path(), 0);
+                        } finally {
+                            l.unlock();
+                        }
+                    } else {
+                        FileNode next = cur.children.get(part);
+                        if (next == null) {
+                            report("mkdir: '" + path + "': No such directory\n");
+                            return;
+                        }
+                        if (!next.isDirectory) {
+                            report("mkdir: '" + path + "': Not a directory\n");
+                            return;
+                        }
+                        cur = next;
                     }
-                    cur = next;
                 }
+            } finally {
+                treeLock.readLock().unlock();
             }
         }
 
         void touch(String path, String content) {
             String parentPath = path.contains("/") ? path.substring(0, path.lastIndexOf('/')) : "/";
             String name = path.substring(path.lastIndexOf('/') + 1);
-            Optional<FileNode> parentOpt = resolvePath(parentPath);
-            if (!parentOpt.isPresent()) {
-                GUI.instance.appendOutput("touch: '" + path + "': No such directory\n");
-                return;
+            treeLock.readLock().lock();
+            try {
+                Optional<FileNode> parentOpt = resolvePath(parentPath);
+                if (!parentOpt.isPresent()) {
+                    report("touch: '" + path + "': No such directory\n");
+                    return;
+                }
+                FileNode parent = parentOpt.get();
+                ReentrantLock l = stripe(parent);
+                l.lock();
+                try {
+                    FileNode file = parent.children.get(name);
+                    if (file == null) {
+                        file = new FileNode(name, parent, false);
+                        preserve(parent);
+                        parent.putChildIfAbsent(file);
+                        index.created(file);
+                    }
+                    if (file.isDirectory) {
+                        report("touch: '" + path + "': Is a directory\n");
+                        return;
+                    }
+                    preserve(file);
+                    file.setContent(content);
+                    MythProcess.chargeWrite(file.size);
+                    file.modified = System.currentTimeMillis();
+                    index.changed(file, -1);
+                    if (journal != null) journal.append(Journal.TOUCH, file.path(), 0, content == null ? "" : content);
+                } finally {
+                    l.unlock();
+                }
+            } finally {
+                treeLock.readLock().unlock();
             }
-            FileNode parent = parentOpt.get();
-            FileNode file = parent.children.get(name);
-            if (file == null) {
-                file = new FileNode(name, parent, false);
-                parent.children.put(name, file);
+        }
+
+        /* Byte-level body updates; pos < 0 appends at EOF. */
+        void write(FileNode file, long pos, byte[] b, int off, int len) {
+            treeLock.readLock().lock();
+            ReentrantLock l = stripe(file.parent);
+            l.lock();
+            try {
+                long at = pos < 0 ? file.size : pos;
+                boolean appending = at == file.size;
+                preserve(file);
+                file.write(at, b, off, len);
+                MythProcess.chargeWrite(len);
+                file.modified = System.currentTimeMillis();
+                index.changed(file, appending ? at : -1);
+                if (journal != null && attached(file)) journal.appendData(Journal.WRITE, file.path(), at, b, off, len);
+            } finally {
+                l.unlock();
+                treeLock.readLock().unlock();
             }
-            file.content = (content == null) ? "" : content;
-            file.size = file.content.getBytes().length;
-            file.modified = System.currentTimeMillis();
         }
-    }
 
-    /* ---------------------------------------------------- */
-    /*                     USER SYSTEM                      */
-    /* ---------------------------------------------------- */
-    static class UserSystem {
-        static UserSystem instance;
+        void append(FileNode file, byte[] b, int off, int len) { write(file, -1, b, off, len); }
 
-        Map<String, String> users = new HashMap<>();
-        Map<String, String> homes = new HashMap<>();
-        String currentUser = "root";
+        /* Target of a > or >> redirection, created if missing. Every write
+         * is one append, so a long-running writer never rebuilds the body. */
+        OutputStream openWriter(String path, boolean append) {
+            Optional<FileNode> n = resolvePath(path);
+            if (!n.isPresent()) {
+                touch(path, "");
+                n = resolvePath(path);
+                if (!n.isPresent()) return null;
+            } else if (n.get().isDirectory) {
+                report(path + ": Is a directory\n");
+                return null;
+            } else if (!append) {
+                truncate(n.get(), 0);
+            }
+            FileNode file = n.get();
+            return new OutputStream() {
+                @Override public void write(int b) { write(new byte[] { (byte) b }, 0, 1); }
+                @Override public void write(byte[] b, int off, int len) { if (len > 0) append(file, b, off, len); }
+            };
+        }
 
-        UserSystem() {
-            users.put("root", "");   homes.put("root", "/root");
-            users.put("guest", "");  homes.put("guest", "/home/guest");
-            loadUsers();
-            createHomeDirs();
+        /* Source of a < redirection. */
+        InputStream openReader(String path) {
+            Optional<FileNode> n = resolvePath(path);
+            if (!n.isPresent()) report(path + ": No such file or directory\n");
+            else if (n.get().isDirectory) report(path + ": Is a directory\n");
+            else return n.get().openStream();
+            return null;
         }
 
-        void loadUsers() {
+        void truncate(FileNode file, long length) {
+            treeLock.readLock().lock();
+            ReentrantLock l = stripe(file.parent);
+            l.lock();
+            try {
+                preserve(file);
+                file.truncate(length);
+                file.modified = System.currentTimeMillis();
+                index.changed(file, -1);
+                if (journal != null && attached(file)) journal.appendData(Journal.TRUNCATE, file.path(), length, null, 0, 0);
+            } finally {
+                l.unlock();
+                treeLock.readLock().unlock();
+            }
+        }
+
+        static final int SUFFIX_INDEX_MIN = 1024;
+
+        static boolean isGlob(String s) {
+            return s.indexOf('*') >= 0 || s.indexOf('?') >= 0 || s.indexOf('[') >= 0;
+        }
+
+        /* Expands *, ? and [...] one path component at a time. A literal head
+         * narrows the scan to a range of the sorted child map; on large
+         * directories a literal tail ("*.log") uses the reversed-name index,
+         * so cost follows the number of matches rather than directory size. */
+        java.util.List<String> glob(String pattern) {
+            boolean abs = pattern.startsWith("/");
+            String[] parts = pattern.split("/");
+            int lastPart = parts.length - 1;
+            java.util.List<FileNode> nodes = java.util.List.of(abs ? root : cwd);
+            java.util.List<String> paths = java.util.List.of(abs ? "/" : "");
+            for (int i = 0; i < parts.length; i++) {
+                String part = parts[i];
+                if (part.isEmpty()) continue;
+                boolean last = i == lastPart;
+                java.util.List<FileNode> nextNodes = new java.util.ArrayList<>();
+                java.util.List<String> nextPaths = new java.util.ArrayList<>();
+                for (int k = 0; k < nodes.size(); k++) {
+                    FileNode dir = nodes.get(k);
+                    String prefix = paths.get(k);
+                    if (!prefix.isEmpty() && !prefix.endsWith("/")) prefix += "/";
+                    if (!isGlob(part)) {
+                        FileNode c = part.equals(".") ? dir
+                                : part.equals("..") ? (dir.parent == null ? dir : dir.parent)
+                                : dir.children.get(part);
+                        if (c != null && (last || c.isDirectory)) { nextNodes.add(c); nextPaths.add(prefix + part); }
+                        continue;
+                    }
+                    for (FileNode c : candidates(dir, part)) {
+                        if (c.name.startsWith(".") && !part.startsWith(".")) continue;
+                        if ((last || c.isDirectory) && globMatch(part, c.name)) {
+                            nextNodes.add(c);
+                            nextPaths.add(prefix + c.name);
+                        }
+                    }
+                }
+                nodes = nextNodes;
+                paths = nextPaths;
+            }
+            java.util.List<String> out = new java.util.ArrayList<>(paths);
+            Collections.sort(out);
+            return out;
+        }
+
+        private Collection<FileNode> candidates(FileNode dir, String part) {
+            int head = 0;
+            while (head < part.length() && "*?[".indexOf(part.charAt(head)) < 0) head++;
+            int tail = part.length();
+            while (tail > head && "*?]".indexOf(part.charAt(tail - 1)) < 0) tail--;
+            if (head == 0 && tail < part.length() && dir.children.size() >= SUFFIX_INDEX_MIN) {
+                if (dir.bySuffix == null) buildSuffixIndex(dir);
+                Collection<FileNode> bySuffix = dir.withSuffix(part.substring(tail));
+                if (bySuffix != null) return bySuffix;
+            }
+            return dir.withPrefix(part.substring(0, head));
+        }
+
+        /* Built on first suffix query; putChild/removeChild keep it current after that. */
+        private void buildSuffixIndex(FileNode dir) {
+            treeLock.readLock().lock();
+            ReentrantLock l = stripe(dir);
+            l.lock();
+            try {
+                if (dir.bySuffix != null) return;
+                ConcurrentSkipListMap<String, FileNode> idx = new ConcurrentSkipListMap<>();
+                for (FileNode c : dir.children.values()) idx.put(FileNode.reversed(c.name), c);
+                dir.bySuffix = idx;
+            } finally {
+                l.unlock();
+                treeLock.readLock().unlock();
+            }
+        }
+
+        static boolean globMatch(String p, String s) {
+            int pi = 0, si = 0, starP = -1, starS = 0;
+            while (si < s.length()) {
+                boolean step = false;
+                if (pi < p.length()) {
+                    char c = p.charAt(pi);
+                    int end = c == '[' ? classEnd(p, pi) : -1;
+                    if (c == '*') {
+                        starP = pi++;
+                        starS = si;
+                        continue;
+                    } else if (c == '?') {
+                        step = true;
+                        pi++;
+                    } else if (end > 0) {
+                        step = classMatch(p, pi + 1, end, s.charAt(si));
+                        if (step) pi = end + 1;
+                    } else if (c == s.charAt(si)) {
+                        step = true;
+                        pi++;
+                    }
+                }
+                if (step) { si++; continue; }
+                if (starP < 0) return false;
+                pi = starP + 1;
+                si = ++starS;
+            }
+            while (pi < p.length() && p.charAt(pi) == '*') pi++;
+            return pi == p.length();
+        }
+
+        private static int classEnd(String p, int open) {
+            int j = open + 1;
+            if (j < p.length() && p.charAt(j) == '!') j++;
+            if (j < p.length() && p.charAt(j) == ']') j++;
+            return p.indexOf(']', j);
+        }
+
+        private static boolean classMatch(String p, int from, int end, char ch) {
+            boolean negate = p.charAt(from) == '!';
+            if (negate) from++;
+            boolean hit = false;
+            for (int i = from; i < end; i++) {
+                if (i + 2 < end && p.charAt(i + 1) == '-') {
+                    if (ch >= p.charAt(i) && ch <= p.charAt(i + 2)) hit = true;
+                    i += 2;
+                } else if (p.charAt(i) == ch) {
+                    hit = true;
+                }
+            }
+            return hit != negate;
+        }
+
+        /* Removing a directory holds treeLock exclusively: writers below it
+         * only hold their own parent's stripe, and must not journal into a
+         * subtree that is being detached. */
+        boolean rm(String path) {
+            boolean exclusive = resolvePath(path).map(n -> n.isDirectory).orElse(false);
+            while (true) {
+                java.util.concurrent.locks.Lock tl = exclusive ? treeLock.writeLock() : treeLock.readLock();
+                tl.lock();
+                try {
+                    FileNode node = resolvePath(path).orElse(null);
+                    FileNode parent = node == null ? null : node.parent;
+                    if (parent == null) {
+                        report("rm: cannot remove '" + path + "': No such file or directory\n");
+                        return false;
+                    }
+                    if (node.isDirectory && !exclusive) {
+                        exclusive = true;
+                        continue;
+                    }
+                    ReentrantLock l = stripe(parent);
+                    l.lock();
+                    try {
+                        String abs = node.path();
+                        preserve(parent);
+                        if (!parent.removeChild(node)) {
+                            report("rm: cannot remove '" + path + "': No such file or directory\n");
+                            return false;
+                        }
+                        dcache.invalidate(abs, node.isDirectory);
+                        index.removed(node);
+                        if (journal != null) journal.append(Journal.RM, abs, 0);
+                        return true;
+                    } finally {
+                        l.unlock();
+                    }
+                } finally {
+                    tl.unlock();
+                }
+            }
+        }
+
+        /* False once the node, or any ancestor, has been unlinked from the tree. */
+        private boolean attached(FileNode n) {
+            for (FileNode up = n.parent; up != null; n = up, up = up.parent)
+                if (up.children.get(n.name) != n) return false;
+            return n == root;
+        }
+
+        /* mv semantics: into an existing directory, or onto a new/replaced file name.
+         * Runs with treeLock held exclusively, so no other mutation sees a half-moved subtree. */
+        boolean rename(String from, String to) {
+            treeLock.writeLock().lock();
+            try {
+                Optional<FileNode> src = resolvePath(from);
+                if (!src.isPresent() || src.get().parent == null) {
+                    report("mv: cannot stat '" + from + "': No such file or directory\n");
+                    return false;
+                }
+                FileNode node = src.get();
+                FileNode dir;
+                String name;
+                Optional<FileNode> dst = resolvePath(to);
+                if (dst.isPresent() && dst.get().isDirectory) {
+                    dir = dst.get();
+                    name = node.name;
+                } else {
+                    int slash = to.lastIndexOf('/');
+                    Optional<FileNode> parentOpt = resolvePath(slash < 0 ? "." : slash == 0 ? "/" : to.substring(0, slash));
+                    name = to.substring(slash + 1);
+                    if (!parentOpt.isPresent() || !parentOpt.get().isDirectory || name.isEmpty()) {
+                        report("mv: cannot move '" + from + "' to '" + to + "': No such directory\n");
+                        return false;
+                    }
+                    dir = parentOpt.get();
+                }
+                for (FileNode a = dir; a != null; a = a.parent) {
+                    if (a == node) {
+                        report("mv: cannot move '" + from + "' into itself\n");
+                        return false;
+                    }
+                }
+                FileNode existing = dir.children.get(name);
+                if (existing == node) return true;
+                if (existing != null && (existing.isDirectory || node.isDirectory)) {
+                    report("mv: cannot overwrite '" + existing.path() + "'\n");
+                    return false;
+                }
+                String oldPath = node.path();
+                preserve(node.parent);
+                preserve(dir);
+                preserve(node);
+                String oldName = node.name;
+                node.parent.removeChild(node);
+                node.name = name.intern();
+                node.parent = dir;
+                dir.putChild(node);
+                moves++;
+                if (existing != null) index.removed(existing);
+                index.renamed(node, oldName);
+                if (existing != null) dcache.invalidate(node.path(), false);
+                dcache.invalidate(oldPath, node.isDirectory);
+                if (journal != null) journal.append(Journal.RENAME, oldPath, 0, node.path());
+                return true;
+            } finally {
+                treeLock.writeLock().unlock();
+            }
+        }
+
+        void chmod(String path, int mode) {
+            treeLock.readLock().lock();
+            try {
+                Optional<FileNode> n = resolvePath(path);
+                if (!n.isPresent()) {
+                    report("chmod: cannot access '" + path + "': No such file or directory\n");
+                    return;
+                }
+                FileNode node = n.get();
+                ReentrantLock l = stripe(node.parent == null ? node : node.parent);
+                l.lock();
+                try {
+                    preserve(node);
+                    node.permissions = mode & 07777;
+                    node.modified = System.currentTimeMillis();
+                    if (journal != null) journal.append(Journal.CHMOD, node.path(), mode & 07777);
+                } finally {
+                    l.unlock();
+                }
+            } finally {
+                treeLock.readLock().unlock();
+            }
+        }
+
+        void chown(String path, String owner, String group) {
+            treeLock.readLock().lock();
+            try {
+                Optional<FileNode> n = resolvePath(path);
+                if (!n.isPresent()) {
+                    report("chown: cannot access '" + path + "': No such file or directory\n");
+                    return;
+                }
+                FileNode node = n.get();
+                ReentrantLock l = stripe(node.parent == null ? node : node.parent);
+                l.lock();
+                try {
+                    preserve(node);
+                    node.owner = owner;
+                    if (group != null && !group.isEmpty()) node.group = group;
+                    if (journal != null) journal.append(Journal.CHOWN, node.path(), 0, node.owner, node.group);
+                } finally {
+                    l.unlock();
+                }
+            } finally {
+                treeLock.readLock().unlock();
+            }
+        }
+    }
+
+    /* ---------------------------------------------------- */
+    /*                     SEARCH INDEX                     */
+    /* ---------------------------------------------------- */
+    /* Trigram index over file bodies plus a name index. Nothing is read
+     * until the first query builds it; after that VFS mutation hooks queue
+     * changed files and each query folds the queue in first, so an append
+     * only indexes the appended tail. */
+    static class SearchIndex {
+        private static final class Entry {
+            long[] grams = new long[0];     // sorted, distinct
+            long length;
+        }
+
+        private final VFS vfs;
+        private final ConcurrentHashMap<Long, Set<VFS.FileNode>> postings = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<VFS.FileNode, Entry> entries = new ConcurrentHashMap<>();
+        private final ConcurrentSkipListMap<String, Set<VFS.FileNode>> names = new ConcurrentSkipListMap<>();
+        private final ConcurrentHashMap<VFS.FileNode, Long> pending = new ConcurrentHashMap<>();  // append offset, -1 = rewrite
+        private volatile boolean started;
+        private boolean built;
+
+        SearchIndex(VFS vfs) { this.vfs = vfs; }
+
+        /* ---- hooks, called by VFS with its locks held: O(1) unless removing a subtree ---- */
+
+        void created(VFS.FileNode n) {
+            if (!started) return;
+            names.computeIfAbsent(n.name, k -> ConcurrentHashMap.newKeySet()).add(n);
+        }
+
+        void changed(VFS.FileNode n, long appendFrom) {
+            if (started) pending.merge(n, appendFrom, (a, b) -> a < 0 || b < 0 ? -1L : Math.min(a, b));
+        }
+
+        void renamed(VFS.FileNode n, String oldName) {
+            if (!started) return;
+            dropName(oldName, n);
+            created(n);
+        }
+
+        void removed(VFS.FileNode n) {
+            if (!started) return;
+            Deque<VFS.FileNode> stack = new ArrayDeque<>(java.util.List.of(n));
+            while (!stack.isEmpty()) {
+                VFS.FileNode x = stack.pop();
+                dropName(x.name, x);
+                pending.remove(x);
+                Entry e = entries.remove(x);
+                if (e != null) for (long g : e.grams) dropPosting(g, x);
+                stack.addAll(x.children.values());
+            }
+        }
+
+        /* ---- queries ---- */
+
+        /* Files that may contain lit (case-insensitively), or null when lit is too short to narrow. */
+        java.util.List<VFS.FileNode> candidates(String lit) {
+            long[] want = trigrams(lit);
+            if (want.length == 0) return null;
+            refresh();
+            Set<VFS.FileNode> smallest = null;
+            for (long g : want) {
+                Set<VFS.FileNode> s = postings.get(g);
+                if (s == null) return java.util.List.of();
+                if (smallest == null || s.size() < smallest.size()) smallest = s;
+            }
+            java.util.List<VFS.FileNode> out = new java.util.ArrayList<>();
+            outer:
+            for (VFS.FileNode n : smallest) {
+                Entry e = entries.get(n);
+                if (e == null) continue;
+                for (long g : want) if (Arrays.binarySearch(e.grams, g) < 0) continue outer;
+                if (live(n)) out.add(n);
+            }
+            return out;
+        }
+
+        /* Nodes named exactly pattern, or whose name matches it as a glob. */
+        java.util.List<VFS.FileNode> byName(String pattern) {
+            refresh();
+            java.util.List<VFS.FileNode> out = new java.util.ArrayList<>();
+            if (!VFS.isGlob(pattern)) {
+                for (VFS.FileNode n : names.getOrDefault(pattern, Set.of())) if (live(n)) out.add(n);
+                return out;
+            }
+            int head = 0;
+            while (head < pattern.length() && "*?[".indexOf(pattern.charAt(head)) < 0) head++;
+            String prefix = pattern.substring(0, head);
+            Map<String, Set<VFS.FileNode>> range = prefix.isEmpty() ? names
+                    : names.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+            for (Map.Entry<String, Set<VFS.FileNode>> e : range.entrySet())
+                if (VFS.globMatch(pattern, e.getKey()))
+                    for (VFS.FileNode n : e.getValue()) if (live(n)) out.add(n);
+            return out;
+        }
+
+        private boolean live(VFS.FileNode n) {
+            return vfs.resolvePath(n.path()).orElse(null) == n;
+        }
+
+        /* Builds on first use, then folds in queued changes. */
+        private void refresh() {
+            synchronized (this) {
+                if (!built) {
+                    started = true;
+                    java.util.List<VFS.FileNode> files = new java.util.ArrayList<>();
+                    Deque<VFS.FileNode> stack = new ArrayDeque<>(java.util.List.of(vfs.root));
+                    while (!stack.isEmpty()) {
+                        VFS.FileNode n = stack.pop();
+                        created(n);
+                        if (n.isDirectory) stack.addAll(n.children.values());
+                        else files.add(n);
+                    }
+                    files.parallelStream().forEach(f -> index(f, -1));
+                    built = true;
+                }
+            }
+            for (VFS.FileNode n : pending.keySet()) {
+                Long from = pending.remove(n);
+                if (from != null) index(n, from);
+            }
+        }
+
+        private void index(VFS.FileNode n, long appendFrom) {
+            Entry e = entries.computeIfAbsent(n, k -> new Entry());
+            synchronized (e) {
+                long[] fresh;
+                if (appendFrom >= 0 && appendFrom <= e.length) {
+                    // Back up far enough that trigrams spanning the old end are seen.
+                    long from = Math.max(0, appendFrom - 8);
+                    byte[] tail = new byte[(int) (n.data.length() - from)];
+                    int got = Math.max(0, n.data.read(from, tail, 0, tail.length));
+                    int skip = 0;
+                    while (skip < got && (tail[skip] & 0xC0) == 0x80) skip++;
+                    fresh = union(e.grams, trigrams(new String(tail, skip, got - skip, StandardCharsets.UTF_8)));
+                } else {
+                    fresh = trigrams(n.content());
+                    for (long g : e.grams) if (Arrays.binarySearch(fresh, g) < 0) dropPosting(g, n);
+                }
+                for (long g : fresh)
+                    if (Arrays.binarySearch(e.grams, g) < 0)
+                        postings.computeIfAbsent(g, k -> ConcurrentHashMap.newKeySet()).add(n);
+                e.grams = fresh;
+                e.length = n.data.length();
+            }
+        }
+
+        private void dropPosting(long g, VFS.FileNode n) {
+            postings.computeIfPresent(g, (k, s) -> { s.remove(n); return s.isEmpty() ? null : s; });
+        }
+
+        private void dropName(String name, VFS.FileNode n) {
+            names.computeIfPresent(name, (k, s) -> { s.remove(n); return s.isEmpty() ? null : s; });
+        }
+
+        /* Lower-cased character trigrams that do not span a line break. */
+        static long[] trigrams(String text) {
+            if (text.length() < 3) return new long[0];
+            long[] g = new long[text.length() - 2];
+            int k = 0;
+            for (int i = 0; i + 2 < text.length(); i++) {
+                char a = text.charAt(i), b = text.charAt(i + 1), c = text.charAt(i + 2);
+                if (a == '\n' || b == '\n' || c == '\n') continue;
+                g[k++] = ((long) Character.toLowerCase(a) << 32) | ((long) Character.toLowerCase(b) << 16) | Character.toLowerCase(c);
+            }
+            Arrays.sort(g, 0, k);
+            int u = 0;
+            for (int i = 0; i < k; i++) if (u == 0 || g[u - 1] != g[i]) g[u++] = g[i];
+            return Arrays.copyOf(g, u);
+        }
+
+        private static long[] union(long[] a, long[] b) {
+            long[] out = new long[a.length + b.length];
+            int i = 0, j = 0, k = 0;
+            while (i < a.length || j < b.length) {
+                long v = j >= b.length || (i < a.length && a[i] <= b[j]) ? a[i++] : b[j++];
+                if (k == 0 || out[k - 1] != v) out[k++] = v;
+            }
+            return Arrays.copyOf(out, k);
+        }
+    }
+
+    /* Scans files line by line across the common fork-join pool; results keep the input order. */
+    static final class GrepTask extends RecursiveTask<java.util.List<String>> {
+        private static final long serialVersionUID = 1L;
+        private static final int LEAF = 16;
+        private final java.util.List<VFS.FileNode> files;
+        private final int lo, hi;
+        private final java.util.function.Predicate<String> match;
+        private final boolean lineNumbers, filesOnly, prefixPath;
+
+        GrepTask(java.util.List<VFS.FileNode> files, int lo, int hi, java.util.function.Predicate<String> match,
+                 boolean lineNumbers, boolean filesOnly, boolean prefixPath) {
+            this.files = files;
+            this.lo = lo;
+            this.hi = hi;
+            this.match = match;
+            this.lineNumbers = lineNumbers;
+            this.filesOnly = filesOnly;
+            this.prefixPath = prefixPath;
+        }
+
+        @Override
+        protected java.util.List<String> compute() {
+            if (hi - lo > LEAF) {
+                int mid = (lo + hi) >>> 1;
+                GrepTask left = new GrepTask(files, lo, mid, match, lineNumbers, filesOnly, prefixPath);
+                left.fork();
+                java.util.List<String> right = new GrepTask(files, mid, hi, match, lineNumbers, filesOnly, prefixPath).compute();
+                java.util.List<String> out = left.join();
+                out.addAll(right);
+                return out;
+            }
+            java.util.List<String> out = new java.util.ArrayList<>();
+            for (int f = lo; f < hi; f++) {
+                VFS.FileNode n = files.get(f);
+                String text = n.content(), path = n.path();
+                int lineNo = 0;
+                for (int start = 0; start < text.length(); ) {
+                    int end = text.indexOf('\n', start);
+                    if (end < 0) end = text.length();
+                    String line = text.substring(start, end);
+                    lineNo++;
+                    start = end + 1;
+                    if (!match.test(line)) continue;
+                    if (filesOnly) { out.add(path); break; }
+                    out.add((prefixPath ? path + ":" : "") + (lineNumbers ? lineNo + ":" : "") + line);
+                }
+            }
+            return out;
+        }
+    }
+
+    /* ---------------------------------------------------- */
+    /*                     USER SYSTEM                      */
+    /* ---------------------------------------------------- */
+    static class UserSystem {
+        static UserSystem instance;
+
+        Map<String, String> users = new HashMap<>();
+        Map<String, String> homes = new HashMap<>();
+        String currentUser = "root";
+
+        UserSystem() {
+            users.put("root", "");   homes.put("root", "/root");
+            users.put("guest", "");  homes.put("guest", "/home/guest");
+            loadUsers();
+            createHomeDirs();
+        }
+
+        void loadUsers() {
             VFS vfs = VFS.instance;
             vfs.resolvePath("/etc/passwd").ifPresentOrElse(node -> {
-                for (String line : node.content.split("\n")) {
+                for (String line : node.content().split("\n")) {
                     if (line.isBlank() || line.startsWith("#")) continue;
                     String[] f = line.split(":");
                     if (f.length >= 3) {
@@ -279,449 +1851,4112 @@ public class mythOS {
                 String h = homes.get(u);
                 if (!vfs.resolvePath(h).isPresent()) vfs.mkdir(h);
             }
-            if (!vfs.resolvePath("/root").isPresent()) vfs.mkdir("/root");
+            if (!vfs.resolvePath("/root").isPresent()) vfs.mkdir("/root");
+        }
+
+        void switchUser(String user) {
+            if (!users.containsKey(user)) {
+                GUI.instance.appendOutput("su: user '" + user + "' does not exist\n");
+                return;
+            }
+            currentUser = user;
+            String home = homes.getOrDefault(user, "/home/" + user);
+            VFS.instance.cwd = VFS.instance.resolvePath(home).orElse(VFS.instance.root);
+            GUI.instance.appendOutput("Switched to " + user + "\n");
+        }
+    }
+
+    /* ---------------------------------------------------- */
+    /*                       STREAMS                        */
+    /* ---------------------------------------------------- */
+    /* Bounded in-memory byte pipe between two pipeline stages. A writer
+     * blocks while the pipe is full and a reader while it is empty; once
+     * the reader closes, writes fail with Broken so the upstream stage
+     * stops early. */
+    static final class Pipe {
+        static final int CAPACITY = Integer.getInteger("mythos.pipe", 64 * 1024);
+
+        static final class Broken extends IOException {
+            private static final long serialVersionUID = 1L;
+            Broken() { super("Broken pipe"); }
+        }
+
+        private final byte[] buf = new byte[CAPACITY];
+        private int head, count;
+        private boolean writerClosed, readerClosed;
+
+        final InputStream source = new InputStream() {
+            @Override public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+            }
+            @Override public int read(byte[] b, int off, int len) throws IOException { return take(b, off, len); }
+            @Override public void close() { closeReader(); }
+        };
+
+        final OutputStream sink = new OutputStream() {
+            @Override public void write(int b) throws IOException { write(new byte[] { (byte) b }, 0, 1); }
+            @Override public void write(byte[] b, int off, int len) throws IOException { put(b, off, len); }
+            @Override public void close() { closeWriter(); }
+        };
+
+        private int take(byte[] b, int off, int len) throws IOException {
+            MythProcess.checkSignals();
+            return drain(b, off, len);
+        }
+
+        private synchronized int drain(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            try {
+                while (count == 0 && !writerClosed && !readerClosed) wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (count == 0) return -1;
+            int n = Math.min(len, count);
+            int first = Math.min(n, buf.length - head);
+            System.arraycopy(buf, head, b, off, first);
+            System.arraycopy(buf, 0, b, off + first, n - first);
+            head = (head + n) % buf.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        private void put(byte[] b, int off, int len) throws IOException {
+            MythProcess.checkSignals();
+            fill(b, off, len);
+        }
+
+        private synchronized void fill(byte[] b, int off, int len) throws IOException {
+            MythProcess writer = Scheduler.current();
+            while (len > 0) {
+                try {
+                    while (count == buf.length && !readerClosed) wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                if (readerClosed) throw new Broken();
+                if (writerClosed) throw new IOException("Stream closed");
+                int tail = (head + count) % buf.length;
+                int n = Math.min(len, Math.min(buf.length - count, buf.length - tail));
+                System.arraycopy(b, off, buf, tail, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (writer != null && count > writer.pipePeak) writer.pipePeak = count;
+                notifyAll();
+            }
+        }
+
+        synchronized void closeWriter() { writerClosed = true; notifyAll(); }
+
+        synchronized void closeReader() { readerClosed = true; count = 0; notifyAll(); }
+    }
+
+    /* A process's standard streams. Children inherit their parent's; the
+     * shell points a pipeline stage's at the pipes around it. */
+    static final class Stdio {
+        static final Stdio CONSOLE = new Stdio(InputStream.nullInputStream(), new ConsoleStream(), new ConsoleStream());
+
+        final InputStream in;
+        final OutputStream out, err;
+
+        Stdio(InputStream in, OutputStream out, OutputStream err) {
+            this.in = in;
+            this.out = out;
+            this.err = err;
+        }
+
+        /* The streams of the process the calling thread runs for; the console outside one. */
+        static Stdio current() {
+            MythProcess p = Scheduler.current();
+            return p != null ? p.io : CONSOLE;
+        }
+
+        boolean pipedIn() { return in != CONSOLE.in; }
+
+        void print(String text) { write(out, text); }
+
+        void printErr(String text) { write(err, text); }
+
+        private static void write(OutputStream o, String text) {
+            try {
+                o.write(text.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /* Decodes bytes for the console, holding back a UTF-8 sequence split across writes. */
+    static final class ConsoleStream extends OutputStream {
+        private final byte[] partial = new byte[4];
+        private int pending;
+
+        @Override public void write(int b) { write(new byte[] { (byte) b }, 0, 1); }
+
+        @Override public synchronized void write(byte[] b, int off, int len) {
+            byte[] all = new byte[pending + len];
+            System.arraycopy(partial, 0, all, 0, pending);
+            System.arraycopy(b, off, all, pending, len);
+            int end = all.length, lead = end - 1;
+            while (lead >= 0 && lead > end - 4 && (all[lead] & 0xC0) == 0x80) lead--;
+            if (lead >= 0) {
+                int c = all[lead] & 0xFF;
+                int need = c >= 0xF0 ? 4 : c >= 0xE0 ? 3 : c >= 0xC0 ? 2 : 1;
+                if (end - lead < need) end = lead;
+            }
+            pending = all.length - end;
+            System.arraycopy(all, end, partial, 0, pending);
+            if (end > 0) GUI.instance.appendConsole(new String(all, 0, end, StandardCharsets.UTF_8));
+        }
+    }
+
+    /* The last LIMIT console lines, oldest first, in a ring: adding a line
+     * when full overwrites the oldest one, so eviction is O(1) and a session
+     * that runs for days holds the same memory as one that ran for an hour.
+     * Lines are numbered from the start of the session, so a number seen in a
+     * search still names the same line after older ones have been dropped.
+     * Colour codes are stripped; this is the text, not the screen. */
+    static final class Scrollback {
+        static final int LIMIT = Integer.getInteger("mythos.scrollback", 10_000);
+
+        private String[] lines;
+        private int head, size;
+        private long dropped;
+        private final StringBuilder tail = new StringBuilder();     // the line still being written
+
+        Scrollback(int limit) { lines = new String[Math.max(1, limit)]; }
+
+        synchronized int limit() { return lines.length; }
+        synchronized int size() { return size; }
+        synchronized long dropped() { return dropped; }
+
+        synchronized void append(String text) {
+            int from = 0;
+            for (int nl; (nl = text.indexOf('\n', from)) >= 0; from = nl + 1) {
+                tail.append(text, from, nl);
+                push(ANSI.strip(tail.toString()));
+                tail.setLength(0);
+            }
+            tail.append(text, from, text.length());
+        }
+
+        private void push(String line) {
+            if (size < lines.length) {
+                lines[(head + size++) % lines.length] = line;
+            } else {
+                lines[head] = line;
+                head = (head + 1) % lines.length;
+                dropped++;
+            }
+        }
+
+        synchronized void clear() {
+            Arrays.fill(lines, null);
+            dropped += size + (tail.length() > 0 ? 1 : 0);
+            head = size = 0;
+            tail.setLength(0);
+        }
+
+        /* Keeps the newest min(size, limit) lines. */
+        synchronized void resize(int limit) {
+            String[] next = new String[Math.max(1, limit)];
+            int keep = Math.min(size, next.length);
+            for (int i = 0; i < keep; i++) next[i] = lines[(head + size - keep + i) % lines.length];
+            dropped += size - keep;
+            lines = next;
+            head = 0;
+            size = keep;
+        }
+
+        /* Copies the lines out, the unfinished one included, and returns the
+         * number of the first; matching then runs without holding the lock. */
+        synchronized long snapshot(java.util.List<String> into) {
+            for (int i = 0; i < size; i++) into.add(lines[(head + i) % lines.length]);
+            if (tail.length() > 0) into.add(ANSI.strip(tail.toString()));
+            return dropped + 1;
+        }
+    }
+
+    /* Console output from any thread. Writers add to a lock-free queue and
+     * the EDT drains it once a frame: everything queued becomes one document
+     * insert and one caret move. A writer that gets BACKLOG chars ahead of
+     * the screen waits a frame at a time, so a runaway printer runs at the
+     * speed of the display instead of growing the queue without end. */
+    static final class ConsoleSink {
+        static final int FRAME_MS = Integer.getInteger("mythos.console.frame", 16);
+        static final int BACKLOG = Integer.getInteger("mythos.console.backlog", 1 << 20);
+        private static final String CLEAR = new String("");      // by identity: wipe what came before
+
+        private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+        private final java.util.concurrent.atomic.AtomicLong queued = new java.util.concurrent.atomic.AtomicLong();
+        private final AtomicBoolean armed = new AtomicBoolean();
+        private final javax.swing.Timer frame = new javax.swing.Timer(FRAME_MS, e -> flush());
+        final java.util.concurrent.atomic.AtomicLong batches = new java.util.concurrent.atomic.AtomicLong();
+        final Scrollback scrollback = new Scrollback(Scrollback.LIMIT);
+
+        ConsoleSink() {
+            frame.setRepeats(false);
+            frame.setCoalesce(false);   // a start from inside flush() must not be folded into the running event
+        }
+
+        void add(String text) {
+            if (text != CLEAR && text.isEmpty()) return;
+            queue.add(text);
+            long backlog = queued.addAndGet(text.length());
+            if (armed.compareAndSet(false, true)) frame.start();
+            if (backlog > BACKLOG && !SwingUtilities.isEventDispatchThread()) {
+                while (queued.get() > BACKLOG) {
+                    java.util.concurrent.locks.LockSupport.parkNanos(FRAME_MS * 1_000_000L);
+                    MythProcess.checkSignals();
+                }
+            }
+        }
+
+        void clear() { add(CLEAR); }
+
+        /* On the EDT. Takes what was queued when it started; more re-arms the frame. */
+        private void flush() {
+            armed.set(false);
+            long budget = queued.get();
+            StringBuilder batch = new StringBuilder((int) Math.min(budget, Integer.MAX_VALUE - 8));
+            boolean wipe = false;
+            for (String t; budget > 0 || queue.peek() == CLEAR; ) {
+                if ((t = queue.poll()) == null) break;
+                budget -= t.length();
+                queued.addAndGet(-t.length());
+                if (t == CLEAR) {
+                    batch.setLength(0);
+                    wipe = true;
+                } else {
+                    batch.append(t);
+                }
+            }
+            if (!queue.isEmpty() && armed.compareAndSet(false, true)) frame.start();
+            String text = batch.toString();
+            if (wipe) scrollback.clear();
+            scrollback.append(text);
+            JTextArea area = GUI.instance == null ? null : GUI.instance.outputArea;
+            if (area == null) return;
+            if (wipe) area.setText("");
+            if (text.isEmpty()) return;
+            try {
+                Document doc = area.getDocument();
+                doc.insertString(doc.getLength(), ANSI.strip(text), null);     // a text area has no colours
+                trim(doc);
+                area.setCaretPosition(doc.getLength());
+            } catch (BadLocationException ignored) {}
+            batches.incrementAndGet();
+        }
+
+        /* A new limit applies to the ring at once and to the screen on the EDT. */
+        void resize(int lines) {
+            scrollback.resize(lines);
+            SwingUtilities.invokeLater(() -> {
+                JTextArea area = GUI.instance == null ? null : GUI.instance.outputArea;
+                if (area == null) return;
+                try {
+                    trim(area.getDocument());
+                } catch (BadLocationException ignored) {}
+            });
+        }
+
+        /* The document keeps as many lines as the scrollback, plus the one
+         * being written. Its root element indexes the lines, so the cut point
+         * is a lookup and the lines go in one remove. */
+        void trim(Document doc) throws BadLocationException {
+            Element root = doc.getDefaultRootElement();
+            int over = root.getElementCount() - 1 - scrollback.limit();
+            if (over > 0) doc.remove(0, root.getElement(over).getStartOffset());
+        }
+    }
+
+    /* A screen of cols x rows character cells for full-screen programs. Text
+     * written to it is parsed for ANSI escapes as it arrives (cursor moves,
+     * erase, SGR colours) and lands in the cell arrays; the parser keeps its
+     * state between writes, so a sequence may be split across them. Only cells
+     * whose character or attribute actually changes are marked, and only the
+     * box around those is repainted, so redrawing a whole frame on top of the
+     * last one costs what the difference costs. Colours and fonts are made
+     * once. Safe to write from any thread. */
+    static final class Terminal extends JComponent {
+        private static final long serialVersionUID = 1L;
+        private static final Color[] COLORS = {
+            Color.BLACK, new Color(205, 0, 0), new Color(0, 205, 0), new Color(205, 205, 0),
+            new Color(0, 0, 238), new Color(205, 0, 205), new Color(0, 205, 205), new Color(229, 229, 229),
+            new Color(127, 127, 127), Color.RED, Color.GREEN, Color.YELLOW,
+            new Color(92, 92, 255), Color.MAGENTA, Color.CYAN, Color.WHITE,
+            Color.GREEN, Color.BLACK                                    // default foreground, background
+        };
+        private static final Font[] FONTS = { new Font("Monospaced", Font.PLAIN, 12), new Font("Monospaced", Font.BOLD, 12) };
+        // an attribute is foreground | background << 5 | bold << 10, colours indexing COLORS
+        private static final int FG = 16, BG = 17, BOLD = 1 << 10;
+        private static final int DEFAULT = FG | BG << 5;
+
+        final int cols, rows;
+        private final char[] cells;
+        private final int[] attrs;
+        private final int cw, ch, ascent;
+        private int row, col, attr = DEFAULT;
+
+        private int state;                      // 0 text, 1 after ESC, 2 inside ESC [
+        private final int[] params = new int[16];
+        private int nparams;
+        private boolean privateMode;            // ESC [ ? ... : accepted and ignored
+
+        private int top = Integer.MAX_VALUE, bottom = -1, left = Integer.MAX_VALUE, right = -1;
+        long changed;                           // cells that differed from what they replaced
+
+        Terminal(int cols, int rows) {
+            this.cols = cols;
+            this.rows = rows;
+            cells = new char[cols * rows];
+            attrs = new int[cols * rows];
+            Arrays.fill(cells, ' ');
+            Arrays.fill(attrs, DEFAULT);
+            FontMetrics fm = getFontMetrics(FONTS[0]);
+            cw = fm.charWidth('M');
+            ch = fm.getHeight();
+            ascent = fm.getAscent();
+            setOpaque(true);
+            setPreferredSize(new Dimension(cols * cw, rows * ch));
+        }
+
+        void write(CharSequence s) {
+            synchronized (this) {
+                for (int i = 0, n = s.length(); i < n; i++) feed(s.charAt(i));
+                if (bottom < 0) return;
+                repaint(left * cw, top * ch, (right - left + 1) * cw, (bottom - top + 1) * ch);
+                top = left = Integer.MAX_VALUE;
+                bottom = right = -1;
+            }
+        }
+
+        private void feed(char c) {
+            switch (state) {
+                case 0 -> {
+                    switch (c) {
+                        case '\033' -> state = 1;
+                        case '\n' -> { col = 0; lineFeed(); }
+                        case '\r' -> col = 0;
+                        case '\b' -> col = Math.max(0, col - 1);
+                        case '\t' -> col = Math.min(cols - 1, (col / 8 + 1) * 8);
+                        default -> { if (c >= ' ') put(c); }
+                    }
+                }
+                case 1 -> {
+                    if (c == '[') {
+                        state = 2;
+                        nparams = 0;
+                        privateMode = false;
+                        Arrays.fill(params, 0);
+                    } else {
+                        state = 0;              // two-byte escapes: nothing here uses them
+                    }
+                }
+                default -> {
+                    if (c >= '0' && c <= '9') {
+                        if (nparams == 0) nparams = 1;
+                        int p = nparams - 1;
+                        params[p] = Math.min(params[p] * 10 + (c - '0'), 9999);
+                    } else if (c == ';') {
+                        nparams = Math.min(nparams == 0 ? 2 : nparams + 1, params.length);
+                    } else if (c == '?') {
+                        privateMode = true;
+                    } else if (c >= '@' && c <= '~') {
+                        state = 0;
+                        if (!privateMode) control(c);
+                    }
+                }
+            }
+        }
+
+        private void control(char c) {
+            int n = Math.max(1, params[0]);
+            switch (c) {
+                case 'm' -> {
+                    if (nparams == 0) attr = DEFAULT;
+                    for (int i = 0; i < nparams; i++) sgr(params[i]);
+                }
+                case 'H', 'f' -> {
+                    row = Math.min(rows - 1, Math.max(1, params[0]) - 1);
+                    col = Math.min(cols - 1, Math.max(1, params[1]) - 1);
+                }
+                case 'A' -> row = Math.max(0, row - n);
+                case 'B' -> row = Math.min(rows - 1, row + n);
+                case 'C' -> col = Math.min(cols - 1, col + n);
+                case 'D' -> col = Math.max(0, col - n);
+                case 'J' -> {
+                    int at = row * cols + Math.min(col, cols - 1);
+                    switch (params[0]) {
+                        case 0 -> erase(at, cells.length);
+                        case 1 -> erase(0, at + 1);
+                        default -> erase(0, cells.length);
+                    }
+                }
+                case 'K' -> {
+                    int start = row * cols, at = start + Math.min(col, cols - 1);
+                    switch (params[0]) {
+                        case 0 -> erase(at, start + cols);
+                        case 1 -> erase(start, at + 1);
+                        default -> erase(start, start + cols);
+                    }
+                }
+                default -> {}
+            }
+        }
+
+        private void sgr(int p) {
+            if (p == 0) attr = DEFAULT;
+            else if (p == 1) attr |= BOLD;
+            else if (p == 22) attr &= ~BOLD;
+            else if (p >= 30 && p <= 37) attr = attr & ~31 | p - 30;
+            else if (p == 39) attr = attr & ~31 | FG;
+            else if (p >= 40 && p <= 47) attr = attr & ~(31 << 5) | (p - 40) << 5;
+            else if (p == 49) attr = attr & ~(31 << 5) | BG << 5;
+            else if (p >= 90 && p <= 97) attr = attr & ~31 | p - 90 + 8;
+            else if (p >= 100 && p <= 107) attr = attr & ~(31 << 5) | (p - 100 + 8) << 5;
+        }
+
+        private void put(char c) {
+            if (col >= cols) { col = 0; lineFeed(); }
+            set(row * cols + col, c, attr);
+            col++;
+        }
+
+        private void set(int i, char c, int a) {
+            if (cells[i] == c && attrs[i] == a) return;
+            cells[i] = c;
+            attrs[i] = a;
+            changed++;
+            int r = i / cols, k = i % cols;
+            top = Math.min(top, r);
+            bottom = Math.max(bottom, r);
+            left = Math.min(left, k);
+            right = Math.max(right, k);
+        }
+
+        private void erase(int from, int to) {
+            int blank = attr & ~BOLD;
+            for (int i = from; i < to; i++) set(i, ' ', blank);
+        }
+
+        private void lineFeed() {
+            if (row < rows - 1) { row++; return; }
+            System.arraycopy(cells, cols, cells, 0, cells.length - cols);
+            System.arraycopy(attrs, cols, attrs, 0, attrs.length - cols);
+            Arrays.fill(cells, cells.length - cols, cells.length, ' ');
+            Arrays.fill(attrs, attrs.length - cols, attrs.length, attr & ~BOLD);
+            changed += cells.length;
+            top = left = 0;
+            bottom = rows - 1;
+            right = cols - 1;
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            Rectangle clip = g.getClipBounds();
+            if (clip == null) clip = new Rectangle(0, 0, getWidth(), getHeight());
+            g.setColor(COLORS[BG]);
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            int r0 = Math.max(0, clip.y / ch), r1 = Math.min(rows - 1, (clip.y + clip.height - 1) / ch);
+            int c0 = Math.max(0, clip.x / cw), c1 = Math.min(cols - 1, (clip.x + clip.width - 1) / cw);
+            int font = -1;
+            synchronized (this) {
+                for (int r = r0; r <= r1; r++) {
+                    int base = r * cols, y = r * ch;
+                    for (int c = c0, end; c <= c1; c = end) {
+                        int a = attrs[base + c];
+                        end = c + 1;
+                        while (end <= c1 && attrs[base + end] == a) end++;
+                        int bg = a >> 5 & 31;
+                        if (bg != BG) {
+                            g.setColor(COLORS[bg]);
+                            g.fillRect(c * cw, y, (end - c) * cw, ch);
+                        }
+                        int f = (a & BOLD) != 0 ? 1 : 0;
+                        if (f != font) g.setFont(FONTS[font = f]);
+                        g.setColor(COLORS[a & 31]);
+                        g.drawChars(cells, base + c, end - c, c * cw, y + ascent);
+                    }
+                }
+            }
+        }
+    }
+
+    /* ---------------------------------------------------- */
+    /*                   PROCESS MANAGER                    */
+    /* ---------------------------------------------------- */
+    static class MythProcess {
+        /* NEW -> READY (queued) -> RUNNING -> EXITED; a kill can also take READY straight to EXITED. */
+        enum State { NEW, READY, RUNNING, EXITED }
+
+        int pid;
+        String command;
+        volatile MythProcess parent;
+        final Set<MythProcess> children = ConcurrentHashMap.newKeySet();
+        volatile State state = State.NEW;
+        volatile boolean collected;     // the parent takes the status, so no zombie is kept
+        volatile int signal;            // what killed it; 0 while it may run
+        volatile boolean stopped;       // parked at its next cancellation point until continued
+        volatile int nice;
+        volatile int exitCode = 0;
+        final CompletableFuture<Integer> completion = new CompletableFuture<>();   // exit status
+        volatile int lastStatus;        // $? of the shell running as this process
+        volatile Stdio io = Stdio.CONSOLE;
+        long start = System.currentTimeMillis();
+        volatile long end;              // exit time; 0 until then
+        String cwd;
+
+        /* Resource use. Only the thread running the process adds to these
+         * (a process is on one thread at a time), so plain volatiles do. CPU
+         * and allocation are charged between resume and pause: a process
+         * run inline on its parent's thread pauses the parent meanwhile. */
+        static final com.sun.management.ThreadMXBean THREADS =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        volatile long cpu, alloc;       // ns, bytes, up to the last pause
+        volatile long ioRead, ioWritten, pipePeak;
+        private volatile Thread thread;
+        private long cpuMark, allocMark;
+
+        MythProcess(int pid, String command, String cwd) {
+            this.pid = pid;
+            this.command = command;
+            this.cwd = cwd;
+        }
+
+        synchronized boolean transition(State from, State to) {
+            if (state != from) return false;
+            state = to;
+            return true;
+        }
+
+        void resume() {
+            cpuMark = THREADS.getCurrentThreadCpuTime();
+            allocMark = THREADS.getCurrentThreadAllocatedBytes();
+            synchronized (this) { thread = Thread.currentThread(); }
+        }
+
+        void pause() {
+            synchronized (this) {
+                if (thread != Thread.currentThread()) return;
+                thread = null;      // from here on a kill does not interrupt this thread
+            }
+            cpu += THREADS.getCurrentThreadCpuTime() - cpuMark;
+            alloc += THREADS.getCurrentThreadAllocatedBytes() - allocMark;
+        }
+
+        /* CPU time so far, including the running stretch. Read from any thread. */
+        long cpuNanos() {
+            Thread t = thread;
+            long sofar = cpu;
+            if (t == null) return sofar;
+            long now = THREADS.getThreadCpuTime(t.getId());
+            return now < 0 || thread != t ? cpu : sofar + Math.max(0, now - cpuMark);
+        }
+
+        long allocatedBytes() {
+            Thread t = thread;
+            long sofar = alloc;
+            if (t == null) return sofar;
+            long now = THREADS.getThreadAllocatedBytes(t.getId());
+            return now < 0 || thread != t ? alloc : sofar + Math.max(0, now - allocMark);
+        }
+
+        long wallMillis() {
+            long e = end;
+            return (e == 0 ? System.currentTimeMillis() : e) - start;
+        }
+
+        /* VFS traffic, charged to the process on the calling thread if any. */
+        static void chargeRead(long n) {
+            MythProcess p = Scheduler.current();
+            if (p != null) p.ioRead += n;
+        }
+
+        static void chargeWrite(long n) {
+            MythProcess p = Scheduler.current();
+            if (p != null) p.ioWritten += n;
+        }
+
+        /* ---- signals ----
+         * Delivery is cooperative. A kill records the signal and exit status at
+         * once, and interrupts the thread if the process is the one on it (not
+         * paused under an inline child), which wakes it from a pipe, sleep or
+         * wait. The code it runs then stops at its next cancellation point:
+         * between script lines and loop turns, and on VFS and pipe I/O. */
+        static final int SIGINT = 2, SIGKILL = 9, SIGTERM = 15, SIGCONT = 18, SIGSTOP = 19, SIGTSTP = 20;
+
+        static final class Killed extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+            Killed() { super("killed", null, false, false); }
+        }
+
+        void kill(int sig) {
+            signal = sig;
+            exit(128 + sig);
+            synchronized (this) {
+                stopped = false;
+                notifyAll();
+                if (thread != null) thread.interrupt();
+            }
+        }
+
+        void stop() { stopped = true; }
+
+        synchronized void cont() {
+            stopped = false;
+            notifyAll();
+        }
+
+        /* A cancellation point for the process on the calling thread, if any. */
+        static void checkSignals() {
+            MythProcess p = Scheduler.current();
+            if (p != null) p.honourSignals();
+        }
+
+        void honourSignals() {
+            if (stopped) {
+                synchronized (this) {
+                    while (stopped && signal == 0) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            if (signal == 0) Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+            }
+            if (signal != 0) throw new Killed();
+        }
+
+        /* Records the exit status unless the process already exited (e.g. was killed). */
+        boolean exit(int code) {
+            synchronized (this) {
+                if (state == State.EXITED) return false;
+                end = System.currentTimeMillis();
+                exitCode = code;
+                state = State.EXITED;
+            }
+            completion.complete(code);
+            return true;
+        }
+    }
+
+    /* Every process runs on one shared pool of reused worker threads.
+     * READY processes wait in a run queue ordered by nice value, then
+     * arrival; the queue is bounded and exec fails fast once it is full.
+     * A script that waits on a foreground child runs it inline on its own
+     * worker, so nested scripts cannot starve the pool. */
+    static class Scheduler {
+        static final int WORKERS = Integer.getInteger("mythos.sched.workers",
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
+        static final int QUEUE = Integer.getInteger("mythos.sched.queue", 1024);
+
+        private static final ThreadLocal<MythProcess> current = new ThreadLocal<>();
+        private final java.util.concurrent.atomic.AtomicLong arrivals = new java.util.concurrent.atomic.AtomicLong();
+        private final java.util.concurrent.atomic.AtomicInteger threads = new java.util.concurrent.atomic.AtomicInteger();
+        static final int STAGES = Integer.getInteger("mythos.sched.stages", 256);
+
+        private final ThreadPoolExecutor pool;
+        private final ThreadPoolExecutor stages;    // pipeline stages: must all run at once
+
+        /* Queue entry; the priority is fixed when queued, so renice re-queues. */
+        private final class Job implements Runnable, Comparable<Job> {
+            final MythProcess proc;
+            final java.util.function.IntSupplier task;
+            final int nice;
+            final long seq;
+
+            Job(MythProcess proc, java.util.function.IntSupplier task, long seq) {
+                this.proc = proc;
+                this.task = task;
+                this.nice = proc.nice;
+                this.seq = seq;
+            }
+
+            @Override public void run() { Scheduler.this.run(proc, task); }
+
+            @Override public int compareTo(Job o) {
+                return nice != o.nice ? Integer.compare(nice, o.nice) : Long.compare(seq, o.seq);
+            }
+        }
+
+        Scheduler() {
+            pool = new ThreadPoolExecutor(WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "myth-sched-" + threads.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            // Stages feed each other through bounded pipes, so they cannot wait
+            // their turn in the run queue; they get reused threads of their own.
+            stages = new ThreadPoolExecutor(0, STAGES, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                Thread t = new Thread(r, "myth-stage-" + threads.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        /* The process the calling thread is running, or null outside the scheduler. */
+        static MythProcess current() { return current.get(); }
+
+        boolean submit(MythProcess p, java.util.function.IntSupplier task) {
+            if (!p.transition(MythProcess.State.NEW, MythProcess.State.READY)) return false;
+            if (pool.getQueue().size() >= QUEUE) {
+                p.exit(126);
+                return false;
+            }
+            pool.execute(new Job(p, task, arrivals.getAndIncrement()));
+            return true;
+        }
+
+        boolean submitStage(MythProcess p, java.util.function.IntSupplier task) {
+            if (!p.transition(MythProcess.State.NEW, MythProcess.State.READY)) return false;
+            try {
+                stages.execute(() -> run(p, task));
+                return true;
+            } catch (RejectedExecutionException e) {
+                p.exit(126);
+                return false;
+            }
+        }
+
+        void runInline(MythProcess p, java.util.function.IntSupplier task) {
+            if (p.transition(MythProcess.State.NEW, MythProcess.State.READY)) run(p, task);
+        }
+
+        void renice(MythProcess p, int nice) {
+            p.nice = nice;
+            for (Runnable r : pool.getQueue().toArray(new Runnable[0])) {
+                Job j = (Job) r;
+                if (j.proc == p && pool.remove(j)) pool.execute(new Job(p, j.task, j.seq));
+            }
+        }
+
+        /* Drops a READY process from the run queue; false if it already started. */
+        boolean cancel(MythProcess p) {
+            return p.state == MythProcess.State.READY && pool.getQueue().removeIf(r -> ((Job) r).proc == p);
+        }
+
+        int queued() { return pool.getQueue().size(); }
+        int active() { return pool.getActiveCount(); }
+
+        private void run(MythProcess p, java.util.function.IntSupplier task) {
+            if (!p.transition(MythProcess.State.READY, MythProcess.State.RUNNING)) return;   // killed while queued
+            MythProcess outer = current.get();
+            if (outer != null) outer.pause();
+            current.set(p);
+            p.resume();
+            int code = 1;
+            try {
+                code = task.getAsInt();
+            } catch (UncheckedIOException e) {
+                if (e.getCause() instanceof Pipe.Broken) code = 141;      // 128 + SIGPIPE
+            } catch (Exception ignored) {
+            } finally {
+                p.pause();
+                Thread.interrupted();       // a kill that landed after the task ended is not the next one's
+                current.set(outer);
+                if (outer != null) outer.resume();
+                p.exit(code);
+            }
+        }
+    }
+
+    /* The process table. PIDs come from an atomic counter that wraps back
+     * to FIRST_PID after PID_MAX, skipping any still in the table. An exited
+     * process stays as a zombie only until its status is collected: by the
+     * shell for a foreground command, by wait for a background one. Zombies
+     * nobody waits for are bounded too; past ZOMBIES the oldest are reaped,
+     * and their status with them. */
+    static class ProcessManager {
+        static ProcessManager instance;
+
+        static final int FIRST_PID = 1000;
+        static final int PID_MAX = Math.max(FIRST_PID + 1, Integer.getInteger("mythos.pid.max", 32768));
+        static final int ZOMBIES = Integer.getInteger("mythos.proc.zombies", 1024);
+
+        private final java.util.concurrent.atomic.AtomicInteger nextPid = new java.util.concurrent.atomic.AtomicInteger(FIRST_PID);
+        final ConcurrentSkipListMap<Integer, MythProcess> procs = new ConcurrentSkipListMap<>();
+        private final LinkedHashSet<MythProcess> zombies = new LinkedHashSet<>();      // oldest first; guarded by itself
+        final java.util.concurrent.atomic.AtomicLong forks = new java.util.concurrent.atomic.AtomicLong();
+        final java.util.concurrent.atomic.AtomicLong reaped = new java.util.concurrent.atomic.AtomicLong();
+        final Scheduler scheduler = new Scheduler();
+        private final MythProcess init;
+
+        ProcessManager() {
+            init = new MythProcess(1, "init", "/");
+            init.state = MythProcess.State.RUNNING;
+            procs.put(1, init);
+        }
+
+        /* The process on whose behalf the calling thread runs: a scheduled process, else init. */
+        MythProcess current() {
+            MythProcess p = Scheduler.current();
+            return p != null ? p : init;
+        }
+
+        MythProcess get(int pid) { return procs.get(pid); }
+
+        /* Children inherit the parent's nice value, shifted by any enclosing nice builtin. */
+        MythProcess fork(MythProcess parent, String cmd) {
+            MythProcess child = new MythProcess(0, cmd, VFS.instance.cwd.path());
+            child.parent = parent;
+            child.io = parent.io;
+            child.nice = Math.max(-20, Math.min(19, parent.nice + niceDelta.get()));
+            child.pid = allocate(child);
+            parent.children.add(child);
+            forks.incrementAndGet();
+            child.completion.whenComplete((code, e) -> exited(child));
+            return child;
+        }
+
+        private int allocate(MythProcess p) {
+            for (int tries = 0; tries <= PID_MAX - FIRST_PID; tries++) {
+                int pid = nextPid.getAndUpdate(n -> n >= PID_MAX ? FIRST_PID : n + 1);
+                if (procs.putIfAbsent(pid, p) == null) return pid;
+            }
+            throw new IllegalStateException("fork: no free pid below " + PID_MAX);
+        }
+
+        /* The caller takes p's status, now or when p exits; either way p is reaped then. */
+        CompletableFuture<Integer> collect(MythProcess p) {
+            p.collected = true;
+            if (p.state == MythProcess.State.EXITED) reap(p);
+            return p.completion;
+        }
+
+        private void exited(MythProcess p) {
+            MythProcess up = p.parent;
+            for (MythProcess c : p.children) {      // orphans go to init; exited ones can never be waited for now
+                if (c.state == MythProcess.State.EXITED) { reap(c); continue; }
+                c.parent = init;
+                init.children.add(c);
+                p.children.remove(c);
+            }
+            if (p.collected || up == null || up.state == MythProcess.State.EXITED) {
+                reap(p);
+                return;
+            }
+            MythProcess evict = null;
+            synchronized (zombies) {
+                zombies.add(p);
+                if (zombies.size() > ZOMBIES) {
+                    Iterator<MythProcess> it = zombies.iterator();
+                    evict = it.next();
+                    it.remove();
+                }
+            }
+            if (evict != null) reap(evict);
+        }
+
+        private void reap(MythProcess p) {
+            if (!procs.remove(p.pid, p)) return;
+            synchronized (zombies) { zombies.remove(p); }
+            MythProcess up = p.parent;
+            if (up != null) up.children.remove(p);
+            p.children.clear();
+            reaped.incrementAndGet();
+        }
+
+        int zombies() {
+            synchronized (zombies) { return zombies.size(); }
+        }
+
+        static final ThreadLocal<Integer> niceDelta = ThreadLocal.withInitial(() -> 0);
+
+        void exec(MythProcess p, java.util.function.IntSupplier task) {
+            if (!scheduler.submit(p, task))
+                (p.parent != null ? p.parent.io : Stdio.CONSOLE)
+                        .printErr("fork: retry: Resource temporarily unavailable (" + scheduler.queued() + " queued)\n");
+        }
+
+        /* Sends sig to pid; false if there is no such live process. 0 only checks. */
+        boolean kill(int pid, int sig) {
+            MythProcess p = procs.get(pid);
+            if (p == null || p.state == MythProcess.State.EXITED) return false;
+            switch (sig) {
+                case 0 -> {}
+                case MythProcess.SIGSTOP, MythProcess.SIGTSTP -> p.stop();
+                case MythProcess.SIGCONT -> p.cont();
+                default -> {
+                    scheduler.cancel(p);
+                    p.kill(sig);
+                }
+            }
+            return true;
+        }
+
+        /* sig to p and, as with a process group, everything it started. Leaves
+         * go first, so a child exits while its parent can still collect it
+         * rather than being left to init as a zombie. */
+        void killTree(MythProcess p, int sig) {
+            java.util.List<MythProcess> tree = new java.util.ArrayList<>();
+            tree.add(p);
+            for (int i = 0; i < tree.size(); i++) tree.addAll(tree.get(i).children);
+            for (int i = tree.size() - 1; i >= 0; i--) kill(tree.get(i).pid, sig);
+        }
+
+        /* Live processes and uncollected zombies, in pid order. */
+        java.util.List<MythProcess> ps() { return new java.util.ArrayList<>(procs.values()); }
+    }
+
+    /* Runs a batch of command lines, up to `jobs` at once, each in a child
+     * process on a fixed pool of `jobs` threads. A thread takes the next line
+     * as soon as it is free, so uneven commands still keep every thread busy,
+     * and a command that blocks holds its thread rather than letting another
+     * start beside it. Each command's output is gathered whole, then written as it
+     * finishes or, with keepOrder, once everything before it is out. After
+     * a failure, halt "soon" starts no more commands and "now" also kills
+     * the running ones. */
+    static final class Fanout {
+        private final java.util.List<String> lines;
+        private final int jobs;
+        private final boolean keepOrder;
+        private final String halt;
+        private final MythProcess parent;
+        private final Stdio io;
+        private final byte[][] held;
+        private int next;                   // the first line whose output is not out yet (keepOrder)
+        private final Set<MythProcess> running = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean halted = new AtomicBoolean();
+        private final java.util.concurrent.atomic.AtomicInteger failed = new java.util.concurrent.atomic.AtomicInteger();
+
+        Fanout(java.util.List<String> lines, int jobs, boolean keepOrder, String halt) {
+            this.lines = lines;
+            this.jobs = jobs;
+            this.keepOrder = keepOrder;
+            this.halt = halt;
+            this.parent = ProcessManager.instance.current();
+            this.io = Stdio.current();
+            this.held = new byte[keepOrder ? lines.size() : 0][];
+        }
+
+        /* The number of commands that failed. Blocks the calling process. */
+        int run() {
+            if (lines.isEmpty()) return 0;
+            int threads = Math.min(jobs, lines.size());
+            java.util.concurrent.atomic.AtomicInteger cursor = new java.util.concurrent.atomic.AtomicInteger();
+            java.util.concurrent.atomic.AtomicInteger names = new java.util.concurrent.atomic.AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "fanout-" + names.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            java.util.List<Future<?>> workers = new java.util.ArrayList<>(threads);
+            for (int k = 0; k < threads; k++) {
+                workers.add(pool.submit(() -> {
+                    for (int i; (i = cursor.getAndIncrement()) < lines.size(); ) job(i);
+                }));
+            }
+            try {
+                for (Future<?> w : workers) {
+                    try {
+                        w.get();
+                    } catch (ExecutionException e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            } catch (InterruptedException e) {
+                stop();
+                MythProcess.checkSignals();
+                Thread.currentThread().interrupt();
+            } finally {
+                pool.shutdown();
+            }
+            return failed.get();
+        }
+
+        private void job(int i) {
+            if (halted.get() || parent.signal != 0) {
+                deliver(i, new byte[0]);
+                return;
+            }
+            ProcessManager pm = ProcessManager.instance;
+            String line = lines.get(i);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            MythProcess p = pm.fork(parent, line);
+            p.io = new Stdio(InputStream.nullInputStream(), out, io.err);
+            running.add(p);
+            pm.scheduler.runInline(p, () -> Shell.await(GUI.instance.shell.execute(line)));
+            int code = Shell.await(pm.collect(p));
+            running.remove(p);
+            if (code != 0) {
+                failed.incrementAndGet();
+                if (halt != null && halted.compareAndSet(false, true) && halt.equals("now")) stop();
+            }
+            deliver(i, out.toByteArray());
+        }
+
+        private void stop() {
+            halted.set(true);
+            for (MythProcess r : running) ProcessManager.instance.killTree(r, MythProcess.SIGTERM);
+        }
+
+        private synchronized void deliver(int i, byte[] b) {
+            try {
+                if (!keepOrder) {
+                    io.out.write(b);
+                    return;
+                }
+                held[i] = b;
+                while (next < held.length && held[next] != null) {
+                    io.out.write(held[next]);
+                    held[next++] = null;
+                }
+            } catch (IOException | UncheckedIOException e) {     // nobody reads the output any more
+                stop();
+            }
+        }
+    }
+
+    /* ---------------------------------------------------- */
+    /*                         SHELL                        */
+    /* ---------------------------------------------------- */
+    static class Shell {
+        String prompt = ANSI.CYAN + "%u@%h:%w$ " + ANSI.RESET;
+        java.util.List<String> history = new java.util.ArrayList<>();
+        int historyIndex = -1;
+
+        private CompletableFuture<Integer> foreground = CompletableFuture.completedFuture(0);
+
+        /* Called on the EDT, which never waits: a line typed while a foreground
+         * job runs is queued behind it and run on the EDT when it exits. */
+        void processInput(String line) {
+            if (line.trim().isEmpty()) return;
+            history.add(line);
+            historyIndex = history.size();
+            if (foreground.isDone()) foreground = execute(line);
+            else foreground = foreground.exceptionally(e -> 1).thenComposeAsync(s -> execute(line), SwingUtilities::invokeLater);
+        }
+
+        String getPrompt() {
+            return prompt
+                    .replace("%u", UserSystem.instance.currentUser)
+                    .replace("%h", "mythos")
+                    .replace("%w", VFS.instance.cwd.path().replace("/home/" + UserSystem.instance.currentUser, "~"));
+        }
+
+        static class ParsedCommand {
+            String name;
+            java.util.List<String> args = new java.util.ArrayList<>();
+            String inputFile = null;
+            String outputFile = null;
+            boolean append = false;
+            boolean background = false;
+            boolean builtin = false;
+            String raw;
+            CompletableFuture<Integer> result;      // set by a builtin that fails or finishes later
+
+            ParsedCommand(String raw) { this.raw = raw; }
+        }
+
+        /* ---- lexer and parser ---- */
+
+        /* A line parses to a list of and-or chains of pipelines of simple commands:
+         *   list     := and-or ((; | &) and-or)* [; | &]
+         *   and-or   := pipeline ((&& | ||) pipeline)*
+         *   pipeline := command (| command)*
+         *   command  := (WORD | < WORD | > WORD | >> WORD)+
+         * Words keep their expansion for later: by the shell for a typed line,
+         * or through their compiled form (filled in by Script) for a script line. */
+        static final class Simple {
+            final String[] words;
+            final boolean[] quoted;     // quoted or escaped: no globbing
+            final String in, out;
+            final boolean append;
+            final String raw;
+            Word[] argv;                // the compiled words, for script lines
+            Word inWord, outWord;
+
+            Simple(String[] words, boolean[] quoted, String in, String out, boolean append, String raw) {
+                this.words = words;
+                this.quoted = quoted;
+                this.in = in;
+                this.out = out;
+                this.append = append;
+                this.raw = raw;
+            }
+        }
+        record Pipeline(Simple[] commands) {}
+        record AndOr(Pipeline[] pipelines, boolean[] or, String raw) {}    // or[i]: pipelines[i+1] runs only if pipelines[i] failed
+        record CommandList(AndOr[] items, boolean[] background) {}
+
+        /* Lexes a line in one pass over the string into token arrays that are
+         * kept per thread and reused, so the only allocations are the words
+         * themselves and the tree built from them.
+         *   '...'  literal        "..."  literal but for \" \\ \$ \`
+         *   \c     c, literally   #      comment, at the start of a word */
+        static final class Parser {
+            static final byte WORD = 0, PIPE = 1, AND = 2, OR = 3, SEMI = 4, AMP = 5, LESS = 6, GREAT = 7, DGREAT = 8;
+            private static final String[] SPELLING = { null, "|", "&&", "||", ";", "&", "<", ">", ">>" };
+
+            /* A $ that was quoted or escaped. It reaches expansion in place of the $
+             * so it is never taken for a reference, and is turned back after. */
+            static final char LITERAL_DOLLAR = '\0';
+
+            private static final ThreadLocal<Parser> POOL = ThreadLocal.withInitial(Parser::new);
+
+            byte[] kind = new byte[32];
+            String[] text = new String[32];
+            boolean[] quoted = new boolean[32];
+            int[] from = new int[32], to = new int[32];
+            int count;
+            private String src;
+            private int at;
+            private final StringBuilder word = new StringBuilder(64);
+
+            /* The calling thread's lexer, loaded with line. */
+            static Parser lex(String line) {
+                Parser p = POOL.get();
+                p.scan(line);
+                return p;
+            }
+
+            static CommandList parse(String line) {
+                Parser p = lex(line);
+                try {
+                    return p.list();
+                } finally {
+                    p.src = null;
+                    Arrays.fill(p.text, 0, p.count, null);
+                }
+            }
+
+            private void scan(String s) {
+                src = s;
+                count = 0;
+                int n = s.length(), i = 0;
+                while (i < n) {
+                    char c = s.charAt(i);
+                    if (c == ' ' || c == '\t' || c == '\r' || c == '\n') { i++; continue; }
+                    if (c == '#') break;
+                    boolean twice = i + 1 < n && s.charAt(i + 1) == c;
+                    switch (c) {
+                        case '|': i = op(twice ? OR : PIPE, i, twice ? 2 : 1); break;
+                        case '&': i = op(twice ? AND : AMP, i, twice ? 2 : 1); break;
+                        case '>': i = op(twice ? DGREAT : GREAT, i, twice ? 2 : 1); break;
+                        case ';': i = op(SEMI, i, 1); break;
+                        case '<': i = op(LESS, i, 1); break;
+                        default: i = word(s, i);
+                    }
+                }
+            }
+
+            private int op(byte k, int i, int len) {
+                add(k, null, false, i, i + len);
+                return i + len;
+            }
+
+            private int word(String s, int i) {
+                StringBuilder w = word;
+                w.setLength(0);
+                boolean q = false;
+                int start = i, n = s.length();
+                scan:
+                while (i < n) {
+                    char c = s.charAt(i);
+                    switch (c) {
+                        case ' ': case '\t': case '\r': case '\n': case '|': case '&': case ';': case '<': case '>':
+                            break scan;
+                        case '\'': {
+                            int end = s.indexOf('\'', i + 1);
+                            if (end < 0) throw new IllegalArgumentException("unexpected end of line while looking for matching `''");
+                            for (int k = i + 1; k < end; k++) literal(w, s.charAt(k));
+                            q = true;
+                            i = end + 1;
+                            break;
+                        }
+                        case '"': {
+                            q = true;
+                            for (i++; ; i++) {
+                                if (i >= n) throw new IllegalArgumentException("unexpected end of line while looking for matching `\"'");
+                                char d = s.charAt(i);
+                                if (d == '"') break;
+                                if (d == '\\' && i + 1 < n && "\"\\$`".indexOf(s.charAt(i + 1)) >= 0) literal(w, s.charAt(++i));
+                                else w.append(d);
+                            }
+                            i++;
+                            break;
+                        }
+                        case '\\':
+                            if (i + 1 < n) literal(w, s.charAt(i + 1));
+                            q = true;
+                            i += 2;
+                            break;
+                        default:
+                            w.append(c);
+                            i++;
+                    }
+                }
+                i = Math.min(i, n);
+                add(WORD, w.toString(), q, start, i);
+                return i;
+            }
+
+            private static void literal(StringBuilder w, char c) {
+                w.append(c == '$' ? LITERAL_DOLLAR : c);
+            }
+
+            private void add(byte k, String t, boolean q, int f, int e) {
+                if (count == kind.length) {
+                    int cap = count * 2;
+                    kind = Arrays.copyOf(kind, cap);
+                    text = Arrays.copyOf(text, cap);
+                    quoted = Arrays.copyOf(quoted, cap);
+                    from = Arrays.copyOf(from, cap);
+                    to = Arrays.copyOf(to, cap);
+                }
+                kind[count] = k;
+                text[count] = t;
+                quoted[count] = q;
+                from[count] = f;
+                to[count] = e;
+                count++;
+            }
+
+            /* ---- recursive descent over the tokens ---- */
+
+            private CommandList list() {
+                at = 0;
+                java.util.List<AndOr> items = new java.util.ArrayList<>(2);
+                boolean[] background = new boolean[4];
+                while (at < count) {
+                    items.add(andOr());
+                    if (at < count) {
+                        byte k = kind[at];
+                        if (k != SEMI && k != AMP) throw unexpected();
+                        if (items.size() > background.length) background = Arrays.copyOf(background, background.length * 2);
+                        background[items.size() - 1] = k == AMP;
+                        at++;
+                    }
+                }
+                return new CommandList(items.toArray(new AndOr[0]), Arrays.copyOf(background, items.size()));
+            }
+
+            private AndOr andOr() {
+                int first = at;
+                java.util.List<Pipeline> pipes = new java.util.ArrayList<>(2);
+                boolean[] or = new boolean[2];
+                pipes.add(pipeline());
+                while (at < count && (kind[at] == AND || kind[at] == OR)) {
+                    if (pipes.size() > or.length) or = Arrays.copyOf(or, or.length * 2);
+                    or[pipes.size() - 1] = kind[at++] == OR;
+                    pipes.add(pipeline());
+                }
+                return new AndOr(pipes.toArray(new Pipeline[0]), Arrays.copyOf(or, pipes.size() - 1), src.substring(from[first], to[at - 1]));
+            }
+
+            private Pipeline pipeline() {
+                java.util.List<Simple> cmds = new java.util.ArrayList<>(2);
+                cmds.add(simple());
+                while (at < count && kind[at] == PIPE) {
+                    at++;
+                    cmds.add(simple());
+                }
+                return new Pipeline(cmds.toArray(new Simple[0]));
+            }
+
+            private Simple simple() {
+                int first = at, words = 0;
+                String in = null, out = null;
+                boolean append = false;
+                for (; at < count; at++) {
+                    byte k = kind[at];
+                    if (k == WORD) { words++; continue; }
+                    if (k != LESS && k != GREAT && k != DGREAT) break;
+                    if (at + 1 >= count || kind[at + 1] != WORD) { at++; throw unexpected(); }
+                    String target = text[++at];
+                    if (k == LESS) in = target;
+                    else { out = target; append = k == DGREAT; }
+                }
+                if (words == 0) throw unexpected();
+                String[] w = new String[words];
+                boolean[] q = new boolean[words];
+                for (int i = first, j = 0; i < at; i++) {
+                    if (kind[i] != WORD) { i++; continue; }
+                    w[j] = text[i];
+                    q[j++] = quoted[i];
+                }
+                return new Simple(w, q, in, out, append, src.substring(from[first], to[at - 1]));
+            }
+
+            private IllegalArgumentException unexpected() {
+                return new IllegalArgumentException("syntax error near unexpected token `" + (at < count ? SPELLING[kind[at]] : "newline") + "'");
+            }
+        }
+
+        /* s as one word of shell input, quoted only if it has to be. */
+        static String quote(String s) {
+            if (!s.isEmpty() && s.chars().noneMatch(ch -> " \t\r\n|&;<>'\"\\#$".indexOf(ch) >= 0)) return s;
+            return "'" + s.replace("'", "'\\''") + "'";
+        }
+
+        /* Builds a command from its expanded words, globbing the unquoted ones. */
+        static ParsedCommand command(String raw, java.util.List<String> words, java.util.List<Boolean> quoted, String in, String out, boolean append) {
+            if (words.isEmpty()) return null;
+            ParsedCommand pc = new ParsedCommand(raw);
+            pc.name = words.get(0);
+            pc.builtin = BUILTINS.containsKey(pc.name);
+            pc.inputFile = in;
+            pc.outputFile = out;
+            pc.append = append;
+            for (int i = 1; i < words.size(); i++) {
+                String t = words.get(i);
+                if (!quoted.get(i) && VFS.isGlob(t)) {
+                    java.util.List<String> matches = VFS.instance.glob(t);
+                    if (matches.isEmpty()) pc.args.add(t);
+                    else pc.args.addAll(matches);
+                } else {
+                    pc.args.add(t);
+                }
+            }
+            return pc;
+        }
+
+        /* A typed command's words: $? is the only expansion outside scripts. */
+        private static ParsedCommand expand(MythProcess self, Simple s) {
+            java.util.List<String> words = new java.util.ArrayList<>(s.words.length);
+            java.util.List<Boolean> quoted = new java.util.ArrayList<>(s.words.length);
+            String status = null;
+            for (int i = 0; i < s.words.length; i++) {
+                String w = s.words[i];
+                if (w.indexOf('$') >= 0) {
+                    if (status == null) status = String.valueOf(self.lastStatus);
+                    w = w.replace("$?", status);
+                }
+                words.add(unescape(w));
+                quoted.add(s.quoted[i]);
+            }
+            return command(s.raw, words, quoted, unescape(s.in), unescape(s.out), s.append);
+        }
+
+        private static String unescape(String w) {
+            return w == null ? null : w.replace(Parser.LITERAL_DOLLAR, '$');
+        }
+
+        /* Runs one line. The future completes with the line's exit status once
+         * its foreground part is done; it is already complete unless a
+         * foreground process was handed to the scheduler. */
+        CompletableFuture<Integer> execute(String line) {
+            MythProcess self = ProcessManager.instance.current();
+            CommandList list;
+            try {
+                list = Parser.parse(line);
+            } catch (IllegalArgumentException e) {
+                Stdio.current().printErr("mythos: " + e.getMessage() + "\n");
+                self.lastStatus = 2;
+                return CompletableFuture.completedFuture(2);
+            }
+            return runList(self, list, Shell::expand);
+        }
+
+        /* Items run one after another; a backgrounded one is only started. */
+        CompletableFuture<Integer> runList(MythProcess self, CommandList list, java.util.function.BiFunction<MythProcess, Simple, ParsedCommand> expand) {
+            CompletableFuture<Integer> status = CompletableFuture.completedFuture(0);
+            for (int i = 0; i < list.items().length; i++) {
+                AndOr item = list.items()[i];
+                boolean background = list.background()[i];
+                status = then(status, s -> runAndOr(self, item, background, expand));
+            }
+            return status;
+        }
+
+        private CompletableFuture<Integer> runAndOr(MythProcess self, AndOr item, boolean background, java.util.function.BiFunction<MythProcess, Simple, ParsedCommand> expand) {
+            Pipeline[] p = item.pipelines();
+            if (background && p.length > 1) {
+                // The chain as a whole goes to the background, in a subshell process of its own.
+                ProcessManager pm = ProcessManager.instance;
+                MythProcess sub = pm.fork(self, item.raw());
+                sub.lastStatus = self.lastStatus;
+                pm.exec(sub, () -> await(runAndOr(sub, item, false, expand)));
+                return track(self, item.raw(), java.util.List.of(sub), true, null);
+            }
+            CompletableFuture<Integer> status = run(self, stages(self, p[0], background, expand));
+            for (int i = 1; i < p.length; i++) {
+                Pipeline next = p[i];
+                boolean or = item.or()[i - 1];
+                status = then(status, s -> (s == 0) == or ? CompletableFuture.completedFuture(s) : run(self, stages(self, next, false, expand)));
+            }
+            return status;
+        }
+
+        private static java.util.List<ParsedCommand> stages(MythProcess self, Pipeline p, boolean background, java.util.function.BiFunction<MythProcess, Simple, ParsedCommand> expand) {
+            java.util.List<ParsedCommand> stages = new java.util.ArrayList<>(p.commands().length);
+            for (Simple s : p.commands()) {
+                ParsedCommand pc = expand.apply(self, s);
+                if (pc != null) stages.add(pc);
+            }
+            if (!stages.isEmpty()) stages.get(stages.size() - 1).background = background;
+            return stages;
+        }
+
+        /* next, once prev has its status: straight away if it has one already or
+         * the caller is a process that may block, otherwise later on the EDT. */
+        private static CompletableFuture<Integer> then(CompletableFuture<Integer> prev, java.util.function.IntFunction<CompletableFuture<Integer>> next) {
+            CompletableFuture<Integer> settled = prev.exceptionally(e -> 1);
+            if (prev.isDone() || Scheduler.current() != null) return next.apply(await(settled));
+            return settled.thenComposeAsync(next::apply, SwingUtilities::invokeLater);
+        }
+
+        /* Blocks a process's thread until f completes; a kill ends the wait. */
+        static int await(CompletableFuture<Integer> f) {
+            try {
+                return f.get();
+            } catch (InterruptedException e) {
+                MythProcess.checkSignals();
+                Thread.currentThread().interrupt();
+                return 128 + MythProcess.SIGINT;
+            } catch (ExecutionException e) {
+                return 1;
+            }
+        }
+
+        CompletableFuture<Integer> run(MythProcess self, java.util.List<ParsedCommand> stages) {
+            if (stages.isEmpty()) return CompletableFuture.completedFuture(0);
+            CompletableFuture<Integer> status = stages.size() == 1 ? runCommand(self, stages.get(0)) : runPipeline(self, stages);
+            return status.thenApply(code -> { self.lastStatus = code; return code; });
+        }
+
+        private CompletableFuture<Integer> runCommand(MythProcess self, ParsedCommand pc) {
+            ProcessManager pm = ProcessManager.instance;
+            boolean redirected = pc.inputFile != null || pc.outputFile != null;
+            Stdio io = redirected ? redirect(pc, self.io) : self.io;
+            if (io == null) return CompletableFuture.completedFuture(1);
+            if (pc.builtin) {
+                if (pc.background && !pc.name.equals("nice")) {    // nice passes & on to its command
+                    io.printErr("Background not allowed for builtin: " + pc.name + "\n");
+                    return CompletableFuture.completedFuture(1);
+                }
+                if (!redirected) {
+                    runBuiltin(pc);
+                    return pc.result != null ? pc.result : CompletableFuture.completedFuture(0);
+                }
+                // A redirected builtin runs as a process, right here, so its output has somewhere to go.
+                MythProcess proc = pm.fork(self, pc.raw);
+                proc.io = io;
+                pm.scheduler.runInline(proc, () -> { runBuiltin(pc); return 0; });
+                CompletableFuture<Integer> exited = pm.collect(proc);
+                return pc.result != null ? pc.result : exited;
+            }
+            MythProcess proc = pm.fork(self, pc.raw);
+            proc.io = io;
+            if (!pc.background && Scheduler.current() != null) pm.scheduler.runInline(proc, () -> runExternal(pc));
+            else pm.exec(proc, () -> runExternal(pc));
+            return track(self, pc.raw, java.util.List.of(proc), pc.background, pc.background ? null : pm.collect(proc));
+        }
+
+        /* Every stage runs as its own process, builtins included, all at once
+         * with a bounded pipe between neighbours. A stage closes its pipe ends
+         * when it exits, which ends the stream downstream and stops the
+         * writer upstream. The status is the last stage's, once all exit. */
+        private CompletableFuture<Integer> runPipeline(MythProcess self, java.util.List<ParsedCommand> stages) {
+            ProcessManager pm = ProcessManager.instance;
+            boolean background = stages.get(stages.size() - 1).background;
+            java.util.List<MythProcess> procs = new java.util.ArrayList<>();
+            java.util.List<CompletableFuture<Integer>> done = new java.util.ArrayList<>();
+            Pipe upstream = null;
+            for (int i = 0; i < stages.size(); i++) {
+                ParsedCommand pc = stages.get(i);
+                Pipe in = upstream, out = i < stages.size() - 1 ? new Pipe() : null;
+                MythProcess proc = pm.fork(self, pc.raw);
+                Stdio piped = new Stdio(in != null ? in.source : self.io.in, out != null ? out.sink : self.io.out, self.io.err);
+                Stdio io = pc.inputFile != null || pc.outputFile != null ? redirect(pc, piped) : piped;   // a file beats the pipe
+                proc.io = io != null ? io : piped;
+                Runnable release = () -> {
+                    if (out != null) out.closeWriter();
+                    if (in != null) in.closeReader();
+                };
+                boolean started = pm.scheduler.submitStage(proc, () -> {
+                    try {
+                        if (io == null) return 1;
+                        if (!pc.builtin) return runExternal(pc);
+                        runBuiltin(pc);
+                        return pc.result != null ? await(pc.result) : 0;
+                    } finally {
+                        release.run();
+                    }
+                });
+                if (!started) release.run();
+                procs.add(proc);
+                if (!background) done.add(pm.collect(proc));
+                upstream = out;
+            }
+            StringJoiner command = new StringJoiner(" | ");
+            for (ParsedCommand pc : stages) command.add(pc.raw);
+            if (background) return track(self, command.toString(), procs, true, null);
+            CompletableFuture<Integer> last = done.get(done.size() - 1);
+            return track(self, command.toString(), procs, false, CompletableFuture.allOf(done.toArray(CompletableFuture<?>[]::new)).thenCompose(v -> last));
+        }
+
+        /* The streams for pc: its < and > / >> files in place of base's. Null,
+         * after reporting why, if one cannot be opened. */
+        private Stdio redirect(ParsedCommand pc, Stdio base) {
+            InputStream in = base.in;
+            OutputStream out = base.out;
+            if (pc.inputFile != null && (in = VFS.instance.openReader(pc.inputFile)) == null) return null;
+            if (pc.outputFile != null && (out = VFS.instance.openWriter(pc.outputFile, pc.append)) == null) return null;
+            return new Stdio(in, out, base.err);
+        }
+
+        /* Completes once the listed processes (default: every live child of
+         * this shell) have exited, with the status of the last one named. */
+        CompletableFuture<Integer> waitFor(java.util.List<String> pids) {
+            ProcessManager pm = ProcessManager.instance;
+            MythProcess self = pm.current();
+            java.util.List<CompletableFuture<Integer>> waits = new java.util.ArrayList<>();
+            if (pids.isEmpty()) {
+                for (MythProcess c : self.children) waits.add(pm.collect(c).handle((code, e) -> 0));
+            }
+            for (String a : pids) {
+                if (a.startsWith("%")) {
+                    Job j = job(a, "wait");
+                    if (j == null) { waits.add(CompletableFuture.completedFuture(127)); continue; }
+                    for (MythProcess p : j.procs) pm.collect(p);
+                    waits.add(j.done);
+                    continue;
+                }
+                MythProcess p = null;
+                try { p = pm.get(Integer.parseInt(a)); } catch (NumberFormatException ignored) {}
+                if (p == null || p.parent != self) {
+                    Stdio.current().printErr("wait: pid " + a + " is not a child of this shell\n");
+                    waits.add(CompletableFuture.completedFuture(127));
+                } else {
+                    waits.add(pm.collect(p));
+                }
+            }
+            CompletableFuture<Integer> last = waits.isEmpty() ? CompletableFuture.completedFuture(0) : waits.get(waits.size() - 1);
+            return CompletableFuture.allOf(waits.toArray(CompletableFuture<?>[]::new)).thenCompose(v -> last);
+        }
+
+        /* ---- job control ---- */
+
+        /* What one interactive command started: a pipeline's stages, or the
+         * subshell of a backgrounded && / || chain. It gets a number when it
+         * enters the table, through & or ^Z. */
+        static final class Job {
+            int id;
+            final String command;
+            final MythProcess[] procs;
+            final CompletableFuture<Integer> done;      // the last stage's status, once all have exited
+            volatile CompletableFuture<Integer> detached = new CompletableFuture<>();     // ^Z takes it off the terminal
+
+            Job(String command, java.util.List<MythProcess> procs) {
+                this.command = command;
+                this.procs = procs.toArray(new MythProcess[0]);
+                MythProcess last = this.procs[this.procs.length - 1];
+                CompletableFuture<?>[] all = new CompletableFuture<?>[this.procs.length];
+                for (int i = 0; i < all.length; i++) all[i] = this.procs[i].completion;
+                done = CompletableFuture.allOf(all).thenCompose(v -> last.completion);
+            }
+
+            /* What the shell waits on while the job has the terminal. */
+            CompletableFuture<Integer> foreground() { return done.applyToEither(detached, s -> s); }
+
+            String state() {
+                if (done.isDone()) {
+                    int code = done.join(), sig = procs[procs.length - 1].signal;
+                    return sig != 0 ? signalName(sig) : code == 0 ? "Done" : "Exit " + code;
+                }
+                for (MythProcess p : procs) if (p.stopped && p.state != MythProcess.State.EXITED) return "Stopped";
+                return "Running";
+            }
+        }
+
+        private final java.util.List<Job> jobs = new CopyOnWriteArrayList<>();
+        private volatile Job foregroundJob;
+
+        /* Job control is the interactive shell's (init's); a script's & just starts the work. */
+        CompletableFuture<Integer> track(MythProcess self, String command, java.util.List<MythProcess> procs, boolean background, CompletableFuture<Integer> status) {
+            if (self.parent != null) return background ? CompletableFuture.completedFuture(0) : status;
+            Job j = new Job(command, procs);
+            if (background) {
+                enter(j);
+                GUI.instance.appendOutput("[" + j.id + "] " + j.procs[j.procs.length - 1].pid + "\n");
+                return CompletableFuture.completedFuture(0);
+            }
+            foregroundJob = j;
+            return j.foreground().whenComplete((code, e) -> { if (foregroundJob == j) foregroundJob = null; });
+        }
+
+        private void enter(Job j) {
+            if (j.id == 0) j.id = jobs.stream().mapToInt(x -> x.id).max().orElse(0) + 1;
+            jobs.add(j);
+        }
+
+        /* %N, %% / %+ / % (the current job), %- (the one before), %TEXT (command prefix). */
+        Job job(String spec, String who) {
+            int n = jobs.size();
+            Job j = null;
+            if (spec.equals("%") || spec.equals("%%") || spec.equals("%+")) j = n > 0 ? jobs.get(n - 1) : null;
+            else if (spec.equals("%-")) j = n > 1 ? jobs.get(n - 2) : null;
+            else if (spec.startsWith("%")) {
+                String key = spec.substring(1);
+                for (Job x : jobs) {
+                    if (key.chars().allMatch(Character::isDigit) ? String.valueOf(x.id).equals(key) : x.command.startsWith(key)) j = x;
+                }
+            }
+            if (j == null) Stdio.current().printErr(who + ": " + spec + ": no such job\n");
+            return j;
+        }
+
+        private String line(Job j, boolean pids) {
+            int n = jobs.size();
+            char mark = n > 0 && jobs.get(n - 1) == j ? '+' : n > 1 && jobs.get(n - 2) == j ? '-' : ' ';
+            String state = j.state();
+            StringBuilder sb = new StringBuilder(String.format("[%d]%c  ", j.id, mark));
+            if (pids) {
+                StringJoiner ids = new StringJoiner(",");
+                for (MythProcess p : j.procs) ids.add(String.valueOf(p.pid));
+                sb.append(ids).append(' ');
+            }
+            return sb.append(String.format("%-22s %s%s%n", state, j.command, state.equals("Running") ? " &" : "")).toString();
+        }
+
+        /* Lists the table; finished jobs are shown once, then dropped. */
+        void listJobs(boolean pids) {
+            StringBuilder out = new StringBuilder();
+            for (Job j : jobs) out.append(line(j, pids));
+            dropFinished();
+            GUI.instance.appendOutput(out.toString());
+        }
+
+        /* A finished job, once reported, is gone: its zombies are reaped with it. */
+        private void dropFinished() {
+            for (Job j : jobs) {
+                if (!j.done.isDone()) continue;
+                jobs.remove(j);
+                for (MythProcess p : j.procs) ProcessManager.instance.collect(p);
+            }
+        }
+
+        /* Reports background jobs that finished since the last prompt. */
+        void notifyJobs() {
+            StringBuilder out = new StringBuilder();
+            for (Job j : jobs) if (j.done.isDone()) out.append(line(j, false));
+            dropFinished();
+            if (out.length() > 0) GUI.instance.appendOutput(out.toString());
+        }
+
+        void signal(Job j, int sig) {
+            for (MythProcess p : j.procs) ProcessManager.instance.killTree(p, sig);
+        }
+
+        CompletableFuture<Integer> fg(java.util.List<String> args) {
+            Job j = job(args.isEmpty() ? "%+" : args.get(0), "fg");
+            if (j == null) return CompletableFuture.completedFuture(1);
+            jobs.remove(j);
+            GUI.instance.appendOutput(j.command + "\n");
+            j.detached = new CompletableFuture<>();
+            foregroundJob = j;
+            for (MythProcess p : j.procs) ProcessManager.instance.collect(p);
+            signal(j, MythProcess.SIGCONT);
+            return j.foreground().whenComplete((code, e) -> { if (foregroundJob == j) foregroundJob = null; });
+        }
+
+        int bg(java.util.List<String> args) {
+            Job j = job(args.isEmpty() ? "%+" : args.get(0), "bg");
+            if (j == null) return 1;
+            signal(j, MythProcess.SIGCONT);
+            GUI.instance.appendOutput("[" + j.id + "]+ " + j.command + " &\n");
+            return 0;
+        }
+
+        /* ^C: interrupts the foreground job. */
+        void interrupt() {
+            Job j = foregroundJob;
+            if (j != null) signal(j, MythProcess.SIGINT);
+        }
+
+        /* ^Z: stops the foreground job and gives the terminal back. */
+        void suspend() {
+            Job j = foregroundJob;
+            if (j == null || j.done.isDone()) return;
+            signal(j, MythProcess.SIGTSTP);
+            foregroundJob = null;
+            enter(j);
+            GUI.instance.appendOutput("\n" + line(j, false));
+            j.detached.complete(128 + MythProcess.SIGTSTP);
+        }
+
+        static final String[] SIGNALS = { null, "HUP", "INT", "QUIT", null, null, "ABRT", null, null, "KILL", "USR1", null, "USR2",
+                "PIPE", "ALRM", "TERM", null, null, "CONT", "STOP", "TSTP" };
+
+        static int signalNumber(String name) {
+            String n = name.toUpperCase();
+            if (n.startsWith("SIG")) n = n.substring(3);
+            if (!n.isEmpty() && n.chars().allMatch(Character::isDigit)) return Integer.parseInt(n);
+            return Arrays.asList(SIGNALS).indexOf(n);
+        }
+
+        static String signalName(int sig) {
+            return switch (sig) {
+                case MythProcess.SIGINT -> "Interrupt";
+                case MythProcess.SIGKILL -> "Killed";
+                case MythProcess.SIGTERM -> "Terminated";
+                default -> sig < SIGNALS.length && SIGNALS[sig] != null ? "SIG" + SIGNALS[sig] : "Signal " + sig;
+            };
+        }
+
+        void runBuiltin(ParsedCommand pc) {
+            BUILTINS.getOrDefault(pc.name, c -> GUI.instance.appendOutput("Unknown command: " + c.name + "\n")).accept(pc);
+        }
+
+        int runExternal(ParsedCommand pc) {
+            Optional<VFS.FileNode> script = VFS.instance.resolvePath("/bin/" + pc.name);
+            if (!script.isPresent() || script.get().isDirectory) {
+                Stdio.current().printErr(pc.name + ": command not found\n");
+                return 127;
+            }
+            byte[] magic = new byte[8];
+            if (script.get().data.read(0, magic, 0, 8) != 8 || !new String(magic, StandardCharsets.UTF_8).equals("#!mythos")) {
+                Stdio.current().printErr(pc.name + ": not a mythOS script\n");
+                return 126;
+            }
+            Script compiled;
+            try {
+                compiled = compiledScript(script.get());
+            } catch (IllegalArgumentException e) {
+                Stdio.current().printErr(pc.name + ": syntax error: " + e.getMessage() + "\n");
+                return 2;
+            }
+            return interpretScript(compiled, pc.name, pc.args);
+        }
+
+        /* Runs on the script's own worker, so waiting on each line is fine here. */
+        int interpretScript(String code, java.util.List<String> args) {
+            return interpretScript(Script.compile(code), "script", args);
+        }
+
+        int interpretScript(Script script, String name, java.util.List<String> args) {
+            Frame f = new Frame(script, name, args, ProcessManager.instance.current());
+            return run(script.body, f);
+        }
+
+        /* ---- compiled scripts ---- */
+
+        /* /bin scripts, compiled once and reused until the file changes. */
+        private static final Map<VFS.FileNode, Script> compiled = Collections.synchronizedMap(new WeakHashMap<>());
+
+        static Script compiledScript(VFS.FileNode file) {
+            Script s = compiled.get(file);
+            if (s != null && s.modified == file.modified && s.size == file.size && s.data == file.data) return s;
+            VFS.ChunkStore data = file.data;
+            long modified = file.modified, size = file.size;
+            s = Script.compile(file.content());
+            s.modified = modified;
+            s.size = size;
+            s.data = data;
+            compiled.put(file, s);
+            return s;
+        }
+
+        interface Node {}
+        record Assign(int slot, Word value) implements Node {}
+        record If(Line cond, Node[] then, Node[] otherwise) implements Node {}
+        record While(Line cond, Node[] body) implements Node {}
+        record For(int slot, Word[] items, Node[] body) implements Node {}
+        record Line(CommandList list) implements Node {}
+
+        /* A word with its $ references resolved to frame slots:
+         * lits[0] slots[0] lits[1] ... lits[n]. */
+        static final class Word {
+            final String[] lits;
+            final int[] slots;
+            final boolean quoted;
+            final boolean splat;        // exactly $@, unquoted: one word per argument
+
+            Word(String[] lits, int[] slots, boolean quoted) {
+                this.lits = lits;
+                this.slots = slots;
+                this.quoted = quoted;
+                this.splat = !quoted && slots.length == 1 && slots[0] == Script.ALL && lits[0].isEmpty() && lits[1].isEmpty();
+            }
+
+            String expand(Frame f) {
+                if (slots.length == 0) return lits[0];
+                StringBuilder sb = new StringBuilder(lits[0]);
+                for (int i = 0; i < slots.length; i++) sb.append(f.get(slots[i])).append(lits[i + 1]);
+                return sb.toString();
+            }
+
+            void expandInto(Frame f, java.util.List<String> out, java.util.List<Boolean> quotedOut) {
+                if (splat) {
+                    for (String a : f.args) { out.add(a); quotedOut.add(true); }
+                    return;
+                }
+                out.add(expand(f));
+                quotedOut.add(quoted);
+            }
+        }
+
+        /* One invocation's variables, by slot. */
+        static final class Frame {
+            final String[] vals;
+            final java.util.List<String> args;
+            final MythProcess self;     // the process running the script; its $? is the script's
+
+            Frame(Script s, String name, java.util.List<String> args, MythProcess self) {
+                this.args = args;
+                this.self = self;
+                vals = new String[s.names.size()];
+                Arrays.fill(vals, "");
+                vals[Script.COUNT] = String.valueOf(args.size());
+                vals[Script.ALL] = String.join(" ", args);
+                for (int i = 0; i < vals.length; i++) {
+                    String n = s.names.get(i);
+                    if (!n.chars().allMatch(Character::isDigit)) continue;
+                    int k;
+                    try { k = Integer.parseInt(n); }
+                    catch (NumberFormatException e) { continue; }   // past any int: no such argument
+                    vals[i] = k == 0 ? name : k <= args.size() ? args.get(k - 1) : "";
+                }
+            }
+
+            String get(int slot) { return slot == Script.STATUS ? String.valueOf(self.lastStatus) : vals[slot]; }
+        }
+
+        /* Script source compiled to a tree of nodes. Structure is line based:
+         *   if CMD [; then] ... [elif CMD ...] [else ...] fi
+         *   while CMD [; do] ... done
+         *   for NAME in WORD... [; do] ... done      (a word {1..10} is a range)
+         *   NAME=WORD
+         * and any other line is a command line. */
+        static final class Script {
+            static final int STATUS = 0, COUNT = 1, ALL = 2;
+
+            final java.util.List<String> names = new java.util.ArrayList<>(java.util.List.of("?", "#", "@"));
+            private final Map<String, Integer> slots = new HashMap<>(Map.of("?", STATUS, "#", COUNT, "@", ALL));
+            private final java.util.List<String> lines = new java.util.ArrayList<>();
+            private final java.util.List<Integer> lineNos = new java.util.ArrayList<>();
+            private int pos, at;        // at: the line of the statement being compiled
+            Node[] body;
+            volatile long modified, size;
+            volatile VFS.ChunkStore data;
+
+            private static final java.util.regex.Pattern ASSIGN = java.util.regex.Pattern.compile("[A-Za-z_][A-Za-z0-9_]*=.*");
+
+            static Script compile(String source) {
+                Script s = new Script();
+                String[] raw = source.split("\n");
+                for (int i = 0; i < raw.length; i++) {
+                    String l = raw[i].trim();
+                    if (l.isEmpty() || l.startsWith("#")) continue;
+                    s.lines.add(l);
+                    s.lineNos.add(i + 1);
+                }
+                s.body = s.block();
+                if (s.pos < s.lines.size()) throw s.error("unexpected '" + keyword(s.lines.get(s.pos)) + "'");
+                return s;
+            }
+
+            int slot(String name) {
+                return slots.computeIfAbsent(name, n -> {
+                    names.add(n);
+                    return names.size() - 1;
+                });
+            }
+
+            private Node[] block(String... terminators) {
+                java.util.List<Node> out = new java.util.ArrayList<>();
+                while (pos < lines.size() && !Arrays.asList(terminators).contains(keyword(lines.get(pos)))) out.add(statement());
+                return out.toArray(new Node[0]);
+            }
+
+            private Node statement() {
+                at = pos;
+                String l = lines.get(pos++);
+                switch (keyword(l)) {
+                    case "if": return ifRest(l.substring(2));
+                    case "while": {
+                        Line cond = line(opener(l.substring(5), "do"));
+                        Node[] body = block("done");
+                        expect("done");
+                        return new While(cond, body);
+                    }
+                    case "for": {
+                        Parser p = lex(opener(l.substring(3), "do"));
+                        boolean words = p.count >= 2;
+                        for (int i = 0; i < p.count; i++) words &= p.kind[i] == Parser.WORD;
+                        if (!words || !p.text[1].equals("in")) throw error("expected 'for NAME in WORD...'");
+                        Word[] items = new Word[p.count - 2];
+                        for (int i = 2; i < p.count; i++) items[i - 2] = word(p.text[i], p.quoted[i]);
+                        int slot = slot(p.text[0]);
+                        Node[] body = block("done");
+                        expect("done");
+                        return new For(slot, items, body);
+                    }
+                    case "then": case "do": case "elif": case "else": case "fi": case "done":
+                        pos--;
+                        throw error("unexpected '" + keyword(l) + "'");
+                    default:
+                        if (ASSIGN.matcher(l).matches()) {
+                            Parser p = lex(l);
+                            if (p.count == 1) {
+                                String t = p.text[0];
+                                int eq = t.indexOf('=');
+                                return new Assign(slot(t.substring(0, eq)), word(t.substring(eq + 1), p.quoted[0]));
+                            }
+                        }
+                        return line(l);
+                }
+            }
+
+            private Node ifRest(String condText) {
+                Line cond = line(opener(condText, "then"));
+                Node[] then = block("elif", "else", "fi");
+                if (pos >= lines.size()) throw error("missing 'fi'");
+                String l = lines.get(pos++);
+                switch (keyword(l)) {
+                    case "elif":
+                        at = pos - 1;
+                        return new If(cond, then, new Node[] { ifRest(l.substring(4)) });
+                    case "else": {
+                        Node[] otherwise = block("fi");
+                        expect("fi");
+                        return new If(cond, then, otherwise);
+                    }
+                    default: return new If(cond, then, new Node[0]);
+                }
+            }
+
+            /* The condition or list of a block opener, consuming its then/do. */
+            private String opener(String text, String word) {
+                text = text.trim();
+                if (text.endsWith("; " + word) || text.endsWith(";" + word))
+                    return text.substring(0, text.lastIndexOf(';')).trim();
+                expect(word);
+                return text;
+            }
+
+            private void expect(String word) {
+                if (pos >= lines.size() || !lines.get(pos).equals(word)) throw error("expected '" + word + "'");
+                pos++;
+            }
+
+            private Parser lex(String text) {
+                try {
+                    return Parser.lex(text);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("line " + lineNos.get(at) + ": " + e.getMessage());
+                }
+            }
+
+            private Line line(String text) {
+                CommandList list;
+                try {
+                    list = Parser.parse(text);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("line " + lineNos.get(at) + ": " + e.getMessage());
+                }
+                for (AndOr item : list.items()) {
+                    for (Pipeline p : item.pipelines()) {
+                        for (Simple c : p.commands()) {
+                            c.argv = new Word[c.words.length];
+                            for (int i = 0; i < c.argv.length; i++) c.argv[i] = word(c.words[i], c.quoted[i]);
+                            if (c.in != null) c.inWord = word(c.in, true);
+                            if (c.out != null) c.outWord = word(c.out, true);
+                        }
+                    }
+                }
+                return new Line(list);
+            }
+
+            /* $N (all digits, so $10 is not $1 then 0), ${NAME}, $NAME, $#, $@, $? */
+            private Word word(String t, boolean quoted) {
+                java.util.List<String> lits = new java.util.ArrayList<>();
+                java.util.List<Integer> refs = new java.util.ArrayList<>();
+                StringBuilder lit = new StringBuilder();
+                for (int i = 0; i < t.length(); i++) {
+                    char c = t.charAt(i);
+                    int end = i + 1;
+                    String name = null;
+                    if (c == '$' && end < t.length()) {
+                        char d = t.charAt(end);
+                        if (d == '?' || d == '#' || d == '@') {
+                            name = String.valueOf(d);
+                            end++;
+                        } else if (d == '{' && t.indexOf('}', end) > end + 1) {
+                            name = t.substring(end + 1, t.indexOf('}', end));
+                            end = t.indexOf('}', end) + 1;
+                        } else if (Character.isDigit(d)) {
+                            while (end < t.length() && Character.isDigit(t.charAt(end))) end++;
+                            name = t.substring(i + 1, end);
+                        } else if (Character.isLetter(d) || d == '_') {
+                            while (end < t.length() && (Character.isLetterOrDigit(t.charAt(end)) || t.charAt(end) == '_')) end++;
+                            name = t.substring(i + 1, end);
+                        }
+                    }
+                    if (name == null) { lit.append(c == Parser.LITERAL_DOLLAR ? '$' : c); continue; }
+                    lits.add(lit.toString());
+                    lit.setLength(0);
+                    refs.add(slot(name));
+                    i = end - 1;
+                }
+                lits.add(lit.toString());
+                return new Word(lits.toArray(new String[0]), refs.stream().mapToInt(Integer::intValue).toArray(), quoted);
+            }
+
+            private static String keyword(String line) {
+                int sp = 0;
+                while (sp < line.length() && line.charAt(sp) != ' ' && line.charAt(sp) != ';') sp++;
+                return line.substring(0, sp);
+            }
+
+            private IllegalArgumentException error(String msg) {
+                int at = Math.min(pos, lineNos.size() - 1);
+                return new IllegalArgumentException("line " + (at < 0 ? 0 : lineNos.get(at)) + ": " + msg);
+            }
+        }
+
+        /* A node's status is left in the frame's process, as $? of what ran last. */
+        int run(Node[] block, Frame f) {
+            MythProcess self = f.self;
+            for (Node n : block) {
+                self.honourSignals();
+                if (n instanceof Line l) {
+                    runLine(l, f);
+                } else if (n instanceof Assign a) {
+                    f.vals[a.slot()] = a.value().expand(f);
+                    self.lastStatus = 0;
+                } else if (n instanceof If i) {
+                    if (runLine(i.cond(), f) == 0) run(i.then(), f);
+                    else if (i.otherwise().length > 0) run(i.otherwise(), f);
+                    else self.lastStatus = 0;
+                } else if (n instanceof While w) {
+                    int last = 0;
+                    while (runLine(w.cond(), f) == 0) last = run(w.body(), f);
+                    self.lastStatus = last;
+                } else if (n instanceof For r) {
+                    int last = 0;
+                    for (String v : items(r.items(), f)) {
+                        f.vals[r.slot()] = v;
+                        last = run(r.body(), f);
+                    }
+                    self.lastStatus = last;
+                }
+            }
+            return self.lastStatus;
+        }
+
+        private static final java.util.regex.Pattern RANGE = java.util.regex.Pattern.compile("\\{(-?\\d+)\\.\\.(-?\\d+)\\}");
+
+        private static java.util.List<String> items(Word[] words, Frame f) {
+            java.util.List<String> out = new java.util.ArrayList<>();
+            java.util.List<Boolean> q = new java.util.ArrayList<>();
+            for (Word w : words) w.expandInto(f, out, q);
+            java.util.List<String> items = new java.util.ArrayList<>();
+            for (int i = 0; i < out.size(); i++) {
+                java.util.regex.Matcher m = q.get(i) ? null : RANGE.matcher(out.get(i));
+                if (m != null && m.matches()) {
+                    long a = Long.parseLong(m.group(1)), b = Long.parseLong(m.group(2)), step = a <= b ? 1 : -1;
+                    for (long v = a; v != b + step; v += step) items.add(String.valueOf(v));
+                } else if (!q.get(i) && VFS.isGlob(out.get(i)) && !VFS.instance.glob(out.get(i)).isEmpty()) {
+                    items.addAll(VFS.instance.glob(out.get(i)));
+                } else {
+                    items.add(out.get(i));
+                }
+            }
+            return items;
+        }
+
+        private int runLine(Line l, Frame f) {
+            MythProcess.checkSignals();
+            return await(runList(f.self, l.list(), (self, s) -> {
+                java.util.List<String> words = new java.util.ArrayList<>(s.argv.length);
+                java.util.List<Boolean> quoted = new java.util.ArrayList<>(s.argv.length);
+                for (Word w : s.argv) w.expandInto(f, words, quoted);
+                return command(String.join(" ", words), words, quoted,
+                        s.inWord == null ? null : s.inWord.expand(f), s.outWord == null ? null : s.outWord.expand(f), s.append);
+            }));
+        }
+    }
+
+    /* ---------------------------------------------------- */
+    /*                      RASTERIZER                      */
+    /* ---------------------------------------------------- */
+    /* Fills the triangles of a mesh into a character frame, shaded by how
+     * squarely each face turns to the light. Faces turned away from the eye
+     * are dropped before they cost anything, unless twoSided is set for
+     * meshes that are not closed. Within a face each row is solved for the
+     * span of cells it covers; the weights and the depth then step along the
+     * span by one add each. Everything a frame touches is
+     * allocated up front: the frame, the depth buffer, the projected vertex
+     * and per-face tables and the band tasks, so rendering makes no garbage.
+     * The screen is cut into bands of rows and the bands run on the common
+     * fork-join pool; each band clears and fills only its own rows. */
+    static final class Rasterizer {
+        private static final char[] RAMP = ".,-~:;=!*#$@".toCharArray();
+        private static final float LX = 0, LY = 0.70710677f, LZ = -0.70710677f;    // towards the light: up and behind the viewer
+
+        final int width, height;
+        private final char[] frame;             // ESC [ H, then each row and its newline
+        private final float[] depth;
+        private final CharSequence view;
+
+        private float[] model = {};             // x, y, z per vertex
+        private int[] faces = {};               // three vertex indices per face, anticlockwise seen from outside
+        private float[] normals = {};
+        private float[] px = {}, py = {}, pz = {};
+        private float[] inverseArea = {};
+        private int[] box = {};                 // min x, max x, min y, max y per face
+        private char[] shade = {};
+        private int[] visible = {};
+        private int drawn;
+        volatile boolean twoSided;
+
+        private final Band[] bands;
+        private final RecursiveAction all = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                for (Band b : bands) b.reinitialize();
+                invokeAll(bands);
+            }
+        };
+
+        Rasterizer(int width, int height) {
+            this.width = width;
+            this.height = height;
+            frame = new char[3 + height * (width + 1)];
+            ANSI.HOME.getChars(0, 3, frame, 0);
+            for (int r = 1; r <= height; r++) frame[2 + r * (width + 1)] = '\n';
+            depth = new float[width * height];
+            view = java.nio.CharBuffer.wrap(frame).asReadOnlyBuffer();
+            int n = Math.max(1, Math.min(height, ForkJoinPool.getCommonPoolParallelism() * 4));
+            bands = new Band[n];
+            for (int i = 0; i < n; i++) bands[i] = new Band(height * i / n, height * (i + 1) / n);
+        }
+
+        /* Takes the mesh and works out its face normals once. */
+        void mesh(float[] vertices, int[] triangles) {
+            model = vertices;
+            faces = triangles;
+            int v = vertices.length / 3, f = triangles.length / 3;
+            normals = new float[f * 3];
+            for (int i = 0; i < f; i++) {
+                int a = triangles[3 * i] * 3, b = triangles[3 * i + 1] * 3, c = triangles[3 * i + 2] * 3;
+                float ux = vertices[b] - vertices[a], uy = vertices[b + 1] - vertices[a + 1], uz = vertices[b + 2] - vertices[a + 2];
+                float wx = vertices[c] - vertices[a], wy = vertices[c + 1] - vertices[a + 1], wz = vertices[c + 2] - vertices[a + 2];
+                float nx = uy * wz - uz * wy, ny = uz * wx - ux * wz, nz = ux * wy - uy * wx;
+                float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                if (len > 0) { nx /= len; ny /= len; nz /= len; }
+                normals[3 * i] = nx;
+                normals[3 * i + 1] = ny;
+                normals[3 * i + 2] = nz;
+            }
+            px = new float[v];
+            py = new float[v];
+            pz = new float[v];
+            inverseArea = new float[f];
+            box = new int[f * 4];
+            shade = new char[f];
+            visible = new int[f];
+        }
+
+        /* Turns the mesh by yaw about y, then pitch about x, sets it distance in
+         * front of the eye and draws it. A mesh within the unit sphere fits the
+         * screen at any distance over 1. The result is the frame itself, ready
+         * to write to a Terminal of width x height + 1; it is valid until the
+         * next call. */
+        CharSequence render(double yaw, double pitch, float distance) {
+            float cy = (float) Math.cos(yaw), sy = (float) Math.sin(yaw);
+            float cp = (float) Math.cos(pitch), sp = (float) Math.sin(pitch);
+            float k = (distance - 1) * Math.min(width / 4f, height / 2f) * 0.95f;
+            float cx0 = width / 2f, cy0 = height / 2f;
+            for (int v = 0, n = px.length; v < n; v++) {
+                float x = model[3 * v], y = model[3 * v + 1], z = model[3 * v + 2];
+                float x1 = cy * x + sy * z, z1 = -sy * x + cy * z;
+                float y2 = cp * y - sp * z1, z2 = sp * y + cp * z1 + distance;
+                px[v] = cx0 + 2 * k * x1 / z2;          // cells are about twice as tall as wide
+                py[v] = cy0 - k * y2 / z2;
+                pz[v] = z2;
+            }
+            drawn = 0;
+            for (int f = 0, n = shade.length; f < n; f++) {
+                int a = faces[3 * f], b = faces[3 * f + 1], c = faces[3 * f + 2];
+                if (pz[a] <= 0.01f || pz[b] <= 0.01f || pz[c] <= 0.01f) continue;
+                float area = (px[b] - px[a]) * (py[c] - py[a]) - (py[b] - py[a]) * (px[c] - px[a]);
+                if (area == 0 || area < 0 && !twoSided) continue;           // anticlockwise from outside is positive here
+                int x0 = Math.max(0, (int) Math.floor(Math.min(px[a], Math.min(px[b], px[c]))));
+                int x1 = Math.min(width - 1, (int) Math.ceil(Math.max(px[a], Math.max(px[b], px[c]))));
+                int y0 = Math.max(0, (int) Math.floor(Math.min(py[a], Math.min(py[b], py[c]))));
+                int y1 = Math.min(height - 1, (int) Math.ceil(Math.max(py[a], Math.max(py[b], py[c]))));
+                if (x0 > x1 || y0 > y1) continue;
+                float nx = normals[3 * f], ny = normals[3 * f + 1], nz = normals[3 * f + 2];
+                float n1 = -sy * nx + cy * nz;
+                float lum = (cp * ny - sp * n1) * LY + (sp * ny + cp * n1) * LZ + (cy * nx + sy * nz) * LX;
+                if (area < 0) lum = -lum;                                   // the back of a two-sided face
+                shade[f] = lum > 0 ? RAMP[1 + Math.min(RAMP.length - 2, (int) (lum * (RAMP.length - 1)))] : RAMP[0];
+                inverseArea[f] = 1 / area;
+                box[4 * f] = x0;
+                box[4 * f + 1] = x1;
+                box[4 * f + 2] = y0;
+                box[4 * f + 3] = y1;
+                visible[drawn++] = f;
+            }
+            all.reinitialize();
+            ForkJoinPool.commonPool().invoke(all);
+            return view;
+        }
+
+        int facesDrawn() { return drawn; }
+
+        /* First whole step from the box's left edge where w + step * dw >= 0. */
+        private static float enter(float w, float dw, float lo) {
+            if (dw > 0) return Math.max(lo, (float) Math.ceil(-w / dw));
+            return dw == 0 && w < 0 ? Float.POSITIVE_INFINITY : lo;
+        }
+
+        /* Last whole step where w + step * dw >= 0. */
+        private static float leave(float w, float dw, float hi) {
+            if (dw < 0) return Math.min(hi, (float) Math.floor(-w / dw));
+            return dw == 0 && w < 0 ? Float.NEGATIVE_INFINITY : hi;
+        }
+
+        private final class Band extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            final int from, to;
+
+            Band(int from, int to) { this.from = from; this.to = to; }
+
+            @Override
+            protected void compute() {
+                for (int y = from; y < to; y++) {
+                    int row = 3 + y * (width + 1);
+                    Arrays.fill(frame, row, row + width, ' ');
+                    Arrays.fill(depth, y * width, (y + 1) * width, Float.POSITIVE_INFINITY);
+                }
+                for (int i = 0; i < drawn; i++) {
+                    int f = visible[i];
+                    int y0 = Math.max(from, box[4 * f + 2]), y1 = Math.min(to - 1, box[4 * f + 3]);
+                    if (y0 > y1) continue;
+                    int a = faces[3 * f], b = faces[3 * f + 1], c = faces[3 * f + 2];
+                    float ax = px[a], ay = py[a], bx = px[b], by = py[b], cx = px[c], cy = py[c];
+                    float inv = inverseArea[f];
+                    float za = pz[a], zb = pz[b], zc = pz[c];
+                    char ch = shade[f];
+                    int left = box[4 * f], right = box[4 * f + 1];
+                    float sx = left + 0.5f;
+                    // per cell to the right: the change in each weight and in depth
+                    float da = -(cy - by) * inv, db = -(ay - cy) * inv, dc = -da - db;
+                    float dz = da * za + db * zb + dc * zc;
+                    for (int y = y0; y <= y1; y++) {
+                        float sy = y + 0.5f;
+                        float wa = ((cx - bx) * (sy - by) - (cy - by) * (sx - bx)) * inv;
+                        float wb = ((ax - cx) * (sy - cy) - (ay - cy) * (sx - cx)) * inv;
+                        float wc = 1 - wa - wb;
+                        float lo = 0, hi = right - left;
+                        lo = enter(wa, da, lo);
+                        lo = enter(wb, db, lo);
+                        lo = enter(wc, dc, lo);
+                        hi = leave(wa, da, hi);
+                        hi = leave(wb, db, hi);
+                        hi = leave(wc, dc, hi);
+                        if (lo > hi) continue;
+                        int x = left + (int) lo, x1 = left + (int) hi;
+                        float z = wa * za + wb * zb + wc * zc + lo * dz;
+                        for (int d = y * width + x, e = y * width + x1, o = 3 + y * (width + 1) - y * width; d <= e; d++, z += dz) {
+                            if (z >= depth[d]) continue;
+                            depth[d] = z;
+                            frame[o + d] = ch;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /* A triangle mesh in primitive arrays, centred and scaled into the unit
+     * sphere so any model frames the same way. Parsed from Wavefront OBJ:
+     * "v x y z" vertices and "f a b c ..." faces, whose indices may carry
+     * /texture/normal parts (ignored) or count back from the end when
+     * negative; polygons are split into fans. Everything else is skipped. */
+    static final class Mesh {
+        final float[] vertices;
+        final int[] faces;
+        long modified, size;
+        VFS.ChunkStore data;
+
+        Mesh(float[] vertices, int[] faces) {
+            this.vertices = vertices;
+            this.faces = faces;
+        }
+
+        int vertexCount() { return vertices.length / 3; }
+        int faceCount() { return faces.length / 3; }
+
+        /* OBJ files, parsed once and reused until the file changes. */
+        private static final Map<VFS.FileNode, Mesh> parsed = Collections.synchronizedMap(new WeakHashMap<>());
+
+        static Mesh of(VFS.FileNode file) {
+            Mesh m = parsed.get(file);
+            if (m != null && m.modified == file.modified && m.size == file.size && m.data == file.data) return m;
+            VFS.ChunkStore data = file.data;
+            long modified = file.modified, size = file.size;
+            byte[] b = data.toByteArray();
+            MythProcess.chargeRead(b.length);
+            m = parseObj(b);
+            m.modified = modified;
+            m.size = size;
+            m.data = data;
+            parsed.put(file, m);
+            return m;
+        }
+
+        static boolean cached(VFS.FileNode file) {
+            Mesh m = parsed.get(file);
+            return m != null && m.modified == file.modified && m.size == file.size && m.data == file.data;
+        }
+
+        /* Straight off the bytes: no lines, no split, no boxed numbers. */
+        static Mesh parseObj(byte[] b) {
+            float[] v = new float[3 * 1024];
+            int[] f = new int[3 * 2048];
+            int nv = 0, nf = 0, line = 0;
+            int[] at = new int[1], poly = new int[16];
+            for (int i = 0, n = b.length; i < n; ) {
+                int end = i;
+                while (end < n && b[end] != '\n') end++;
+                line++;
+                int p = skipSpace(b, i, end);
+                if (p + 1 < end && b[p] == 'v' && (b[p + 1] == ' ' || b[p + 1] == '\t')) {
+                    if (nv + 3 > v.length) v = Arrays.copyOf(v, v.length * 2);
+                    at[0] = p + 1;
+                    for (int k = 0; k < 3; k++) {
+                        at[0] = skipSpace(b, at[0], end);
+                        if (at[0] >= end) throw new IllegalArgumentException("line " + line + ": vertex needs x y z");
+                        v[nv++] = number(b, at, end, line);
+                    }
+                } else if (p + 1 < end && b[p] == 'f' && (b[p + 1] == ' ' || b[p + 1] == '\t')) {
+                    int corners = 0, count = nv / 3;
+                    at[0] = p + 1;
+                    while ((at[0] = skipSpace(b, at[0], end)) < end && b[at[0]] != '#') {
+                        int idx = index(b, at, end, line);
+                        while (at[0] < end && b[at[0]] > ' ') at[0]++;           // /vt/vn
+                        idx = idx < 0 ? count + idx : idx - 1;
+                        if (idx < 0 || idx >= count) throw new IllegalArgumentException("line " + line + ": no vertex " + (idx + 1));
+                        if (corners == poly.length) poly = Arrays.copyOf(poly, corners * 2);
+                        poly[corners++] = idx;
+                    }
+                    if (corners < 3) throw new IllegalArgumentException("line " + line + ": face needs 3 vertices");
+                    if (nf + 3 * (corners - 2) > f.length) f = Arrays.copyOf(f, Math.max(f.length * 2, nf + 3 * corners));
+                    for (int k = 1; k + 1 < corners; k++) {
+                        f[nf++] = poly[0];
+                        f[nf++] = poly[k];
+                        f[nf++] = poly[k + 1];
+                    }
+                }
+                i = end + 1;
+            }
+            if (nf == 0) throw new IllegalArgumentException("no faces");
+            float[] vertices = Arrays.copyOf(v, nv);
+            normalise(vertices);
+            return new Mesh(vertices, Arrays.copyOf(f, nf));
+        }
+
+        private static void normalise(float[] v) {
+            float[] lo = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+            float[] hi = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+            for (int i = 0; i < v.length; i++) {
+                lo[i % 3] = Math.min(lo[i % 3], v[i]);
+                hi[i % 3] = Math.max(hi[i % 3], v[i]);
+            }
+            float r = 0;
+            for (int i = 0; i < v.length; i++) {
+                v[i] -= (lo[i % 3] + hi[i % 3]) / 2;
+                if (i % 3 == 2) r = Math.max(r, v[i - 2] * v[i - 2] + v[i - 1] * v[i - 1] + v[i] * v[i]);
+            }
+            if (r == 0) return;
+            float scale = (float) (1 / Math.sqrt(r));
+            for (int i = 0; i < v.length; i++) v[i] *= scale;
+        }
+
+        private static int skipSpace(byte[] b, int i, int end) {
+            while (i < end && (b[i] == ' ' || b[i] == '\t' || b[i] == '\r')) i++;
+            return i;
+        }
+
+        private static int index(byte[] b, int[] at, int end, int line) {
+            int i = at[0];
+            boolean neg = i < end && b[i] == '-';
+            if (neg) i++;
+            int start = i, n = 0;
+            while (i < end && b[i] >= '0' && b[i] <= '9') n = n * 10 + (b[i++] - '0');
+            if (i == start) throw new IllegalArgumentException("line " + line + ": bad face index");
+            at[0] = i;
+            return neg ? -n : n;
+        }
+
+        /* [-]digits[.digits][e[-]digits], which is all OBJ writers produce. */
+        private static float number(byte[] b, int[] at, int end, int line) {
+            int i = at[0];
+            boolean neg = false;
+            if (i < end && (b[i] == '-' || b[i] == '+')) neg = b[i++] == '-';
+            long mantissa = 0;
+            int scale = 0, digits = 0;
+            for (; i < end && b[i] >= '0' && b[i] <= '9'; i++, digits++) {
+                if (mantissa < 100_000_000_000_000L) mantissa = mantissa * 10 + (b[i] - '0');
+                else scale++;
+            }
+            if (i < end && b[i] == '.') {
+                for (i++; i < end && b[i] >= '0' && b[i] <= '9'; i++, digits++) {
+                    if (mantissa < 100_000_000_000_000L) { mantissa = mantissa * 10 + (b[i] - '0'); scale--; }
+                }
+            }
+            if (digits == 0) throw new IllegalArgumentException("line " + line + ": bad number");
+            if (i < end && (b[i] == 'e' || b[i] == 'E')) {
+                boolean eneg = false;
+                if (++i < end && (b[i] == '-' || b[i] == '+')) eneg = b[i++] == '-';
+                int e = 0;
+                while (i < end && b[i] >= '0' && b[i] <= '9') e = Math.min(e * 10 + (b[i++] - '0'), 400);
+                scale += eneg ? -e : e;
+            }
+            if (i < end && b[i] > ' ') throw new IllegalArgumentException("line " + line + ": bad number");
+            at[0] = i;
+            double x = scale == 0 ? mantissa : scale > 0 ? mantissa * Math.pow(10, scale) : mantissa / Math.pow(10, -scale);
+            return (float) (neg ? -x : x);
+        }
+    }
+
+    /* Frame times of an animation: the rate over the last second, and the
+     * mean and worst frame over the whole run. */
+    static final class FrameStats {
+        private final long start = System.nanoTime();
+        private long frames, total, worst, windowStart = start, windowFrames;
+        private double rate;
+
+        synchronized void frame(long nanos) {
+            frames++;
+            total += nanos;
+            worst = Math.max(worst, nanos);
+            windowFrames++;
+            long now = System.nanoTime();
+            if (now - windowStart >= 1_000_000_000L) {
+                rate = windowFrames * 1e9 / (now - windowStart);
+                windowStart = now;
+                windowFrames = 0;
+            }
+        }
+
+        synchronized double fps() { return rate; }
+
+        synchronized String summary() {
+            double secs = (System.nanoTime() - start) / 1e9;
+            return String.format("%d frames in %.1fs, %.1f fps, %.2f ms mean, %.2f ms worst",
+                    frames, secs, frames / Math.max(secs, 1e-9), frames == 0 ? 0 : total / 1e6 / frames, worst / 1e6);
+        }
+
+        synchronized String line() {
+            return String.format("%.1f fps  %.2f ms/frame  worst %.2f ms",
+                    rate, frames == 0 ? 0 : total / 1e6 / frames, worst / 1e6);
+        }
+    }
+
+    /* ---------------------------------------------------- */
+    /*                      EXPRESSIONS                     */
+    /* ---------------------------------------------------- */
+    /* Arithmetic for calc and the calculator window. One pass tokenizes and
+     * parses by binding power (Pratt) straight into a small stack bytecode;
+     * running it touches only doubles. Compiled programs are kept in an LRU
+     * keyed by the text, so a repeated or edited-back expression skips the
+     * parse. Tightest first: postfix !, ^ (right to left), unary minus,
+     * * / % and implicit multiplication as in 2(3) or 2pi, then + -, then
+     * assignment NAME = expr. */
+    static final class Calc {
+        static final int CACHE = Integer.getInteger("mythos.calc.cache", 256);
+        static final int NESTING = 200;         // parentheses, unary signs and ^ chains; the parser recurses on each
+
+        private static final int CONST = 0, LOAD = 1, STORE = 2, NEG = 3, ADD = 4, SUB = 5, MUL = 6, DIV = 7,
+                MOD = 8, POW = 9, FACT = 10, CALL = 11;
+        private static final String[] FUNCTIONS = {
+            "sin", "cos", "tan", "asin", "acos", "atan", "sqrt", "cbrt", "abs", "ln", "log", "exp",
+            "floor", "ceil", "round", "min", "max", "pow", "atan2", "hypot"
+        };
+        private static final int[] ARITY = { 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 2, 2, 2, 2, 2 };
+
+        /* Variables of one calculator; ans is the last result. */
+        static final class Env {
+            private final Map<String, double[]> vars = new HashMap<>();
+
+            synchronized double get(String name) {
+                double[] v = vars.get(name);
+                if (v == null) throw new IllegalArgumentException(name + " is not set");
+                return v[0];
+            }
+
+            synchronized void set(String name, double value) {
+                vars.computeIfAbsent(name, k -> new double[1])[0] = value;
+            }
+        }
+
+        static final class Program {
+            private final int[] code;
+            private final double[] consts;
+            private final String[] names;
+            private final int depth;
+
+            private Program(int[] code, double[] consts, String[] names, int depth) {
+                this.code = code;
+                this.consts = consts;
+                this.names = names;
+                this.depth = depth;
+            }
+
+            double run(Env env) {
+                double[] s = new double[depth];
+                int sp = 0;
+                for (int pc = 0; pc < code.length; ) {
+                    switch (code[pc++]) {
+                        case CONST -> s[sp++] = consts[code[pc++]];
+                        case LOAD -> s[sp++] = env.get(names[code[pc++]]);
+                        case STORE -> env.set(names[code[pc++]], s[sp - 1]);
+                        case NEG -> s[sp - 1] = -s[sp - 1];
+                        case ADD -> { sp--; s[sp - 1] += s[sp]; }
+                        case SUB -> { sp--; s[sp - 1] -= s[sp]; }
+                        case MUL -> { sp--; s[sp - 1] *= s[sp]; }
+                        case DIV -> {
+                            if (s[--sp] == 0) throw new ArithmeticException("Division by zero");
+                            s[sp - 1] /= s[sp];
+                        }
+                        case MOD -> {
+                            if (s[--sp] == 0) throw new ArithmeticException("Division by zero");
+                            s[sp - 1] %= s[sp];
+                        }
+                        case POW -> { sp--; s[sp - 1] = Math.pow(s[sp - 1], s[sp]); }
+                        case FACT -> s[sp - 1] = factorial(s[sp - 1]);
+                        default -> {
+                            int fn = code[pc++];
+                            if (ARITY[fn] == 2) sp--;
+                            s[sp - 1] = call(fn, s[sp - 1], ARITY[fn] == 2 ? s[sp] : 0);
+                        }
+                    }
+                }
+                return s[0];
+            }
+        }
+
+        private static final Map<String, Program> cache = new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Program> e) { return size() > CACHE; }
+        };
+        static long hits, misses;
+
+        static Program compile(String text) {
+            String key = text.trim();
+            synchronized (cache) {
+                Program p = cache.get(key);
+                if (p != null) { hits++; return p; }
+                misses++;
+            }
+            Program p = new Calc(key).program();
+            synchronized (cache) { cache.put(key, p); }
+            return p;
+        }
+
+        /* The value as a calculator shows it, or "Error: why". ans follows each result. */
+        static String evaluate(String text, Env env) {
+            try {
+                double v = compile(text).run(env);
+                if (Double.isNaN(v)) return "Error: not a number";
+                env.set("ans", v);
+                return format(v);
+            } catch (ArithmeticException | IllegalArgumentException e) {
+                return "Error: " + e.getMessage();
+            }
+        }
+
+        static String format(double v) {
+            if (v == Math.rint(v) && Math.abs(v) < 1e15) return Long.toString((long) v);
+            return Double.toString(v);
+        }
+
+        private static double factorial(double n) {
+            if (n < 0 || n > 170 || n != Math.rint(n)) throw new ArithmeticException("factorial needs a whole number from 0 to 170");
+            double r = 1;
+            for (int i = 2; i <= n; i++) r *= i;
+            return r;
+        }
+
+        private static double call(int fn, double a, double b) {
+            return switch (fn) {
+                case 0 -> Math.sin(a);
+                case 1 -> Math.cos(a);
+                case 2 -> Math.tan(a);
+                case 3 -> Math.asin(a);
+                case 4 -> Math.acos(a);
+                case 5 -> Math.atan(a);
+                case 6 -> Math.sqrt(a);
+                case 7 -> Math.cbrt(a);
+                case 8 -> Math.abs(a);
+                case 9 -> Math.log(a);
+                case 10 -> Math.log10(a);
+                case 11 -> Math.exp(a);
+                case 12 -> Math.floor(a);
+                case 13 -> Math.ceil(a);
+                case 14 -> Math.abs(a) < 0x1p52 ? Math.round(a) : a;   // half up; past 2^52 every double is whole
+                case 15 -> Math.min(a, b);
+                case 16 -> Math.max(a, b);
+                case 17 -> Math.pow(a, b);
+                case 18 -> Math.atan2(a, b);
+                default -> Math.hypot(a, b);
+            };
+        }
+
+        /* ---- compiler ---- */
+
+        private static final int NUM = 0, NAME = 1, OP = 2, END = 3;
+
+        private final String src;
+        private int pos;
+        private int kind, at;                   // the current token and where it starts
+        private double number;
+        private String name;
+        private char op;
+
+        private int[] code = new int[16];
+        private int length, depth, maxDepth;
+        private int nesting;
+        private final java.util.List<Double> consts = new java.util.ArrayList<>();
+        private final java.util.List<String> names = new java.util.ArrayList<>();
+
+        private Calc(String src) { this.src = src; }
+
+        private Program program() {
+            next();
+            if (kind == END) throw new IllegalArgumentException("empty expression");
+            expression(0);
+            if (kind != END) throw unexpected();
+            double[] k = new double[consts.size()];
+            for (int i = 0; i < k.length; i++) k[i] = consts.get(i);
+            return new Program(Arrays.copyOf(code, length), k, names.toArray(new String[0]), Math.max(1, maxDepth));
+        }
+
+        private void next() {
+            while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) pos++;
+            at = pos;
+            if (pos == src.length()) { kind = END; return; }
+            char c = src.charAt(pos);
+            if (Character.isDigit(c) || c == '.' && pos + 1 < src.length() && Character.isDigit(src.charAt(pos + 1))) {
+                while (pos < src.length() && (Character.isDigit(src.charAt(pos)) || src.charAt(pos) == '.')) pos++;
+                if (pos < src.length() && (src.charAt(pos) == 'e' || src.charAt(pos) == 'E')) {
+                    int e = pos + 1;
+                    if (e < src.length() && (src.charAt(e) == '+' || src.charAt(e) == '-')) e++;
+                    if (e < src.length() && Character.isDigit(src.charAt(e))) {
+                        pos = e;
+                        while (pos < src.length() && Character.isDigit(src.charAt(pos))) pos++;
+                    }
+                }
+                try {
+                    number = Double.parseDouble(src.substring(at, pos));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("bad number '" + src.substring(at, pos) + "'");
+                }
+                kind = NUM;
+            } else if (Character.isLetter(c) || c == '_') {
+                while (pos < src.length() && (Character.isLetterOrDigit(src.charAt(pos)) || src.charAt(pos) == '_')) pos++;
+                name = src.substring(at, pos);
+                kind = NAME;
+            } else if ("+-*/%^!(),=".indexOf(c) >= 0) {
+                op = c;
+                pos++;
+                kind = OP;
+            } else {
+                throw new IllegalArgumentException("unexpected '" + c + "' at " + (pos + 1));
+            }
+        }
+
+        private IllegalArgumentException unexpected() {
+            if (kind == END) return new IllegalArgumentException("unexpected end");
+            return new IllegalArgumentException("unexpected '" + src.substring(at, pos) + "' at " + (at + 1));
+        }
+
+        private void expression(int minBp) {
+            if (++nesting > NESTING) throw new IllegalArgumentException("nested too deeply at " + (at + 1));
+            try {
+                operands(minBp);
+            } finally {
+                nesting--;
+            }
+        }
+
+        private void operands(int minBp) {
+            operand();
+            while (true) {
+                if (kind == OP && op == '!') {
+                    emit(FACT);
+                    next();
+                } else if (kind == OP && "+-*/%^".indexOf(op) >= 0 && power(op) > minBp) {
+                    char o = op;
+                    next();
+                    expression(o == '^' ? power(o) - 1 : power(o));
+                    emit(switch (o) {
+                        case '+' -> ADD;
+                        case '-' -> SUB;
+                        case '*' -> MUL;
+                        case '/' -> DIV;
+                        case '%' -> MOD;
+                        default -> POW;
+                    });
+                } else if ((kind == NAME || kind == OP && op == '(') && power('*') > minBp) {
+                    expression(power('*'));         // 2(3), 2pi
+                    emit(MUL);
+                } else {
+                    return;
+                }
+            }
+        }
+
+        private static int power(char o) {
+            return switch (o) {
+                case '+', '-' -> 10;
+                case '*', '/', '%' -> 20;
+                default -> 40;                      // ^; unary minus sits at 30, so -2^2 is -4
+            };
+        }
+
+        private void operand() {
+            if (kind == NUM) {
+                consts.add(number);
+                emit(CONST, consts.size() - 1);
+                next();
+            } else if (kind == OP && op == '(') {
+                next();
+                expression(0);
+                if (kind != OP || op != ')') throw kind == END ? new IllegalArgumentException("missing ')'") : unexpected();
+                next();
+            } else if (kind == OP && (op == '-' || op == '+')) {
+                boolean minus = op == '-';
+                next();
+                expression(30);
+                if (minus) emit(NEG);
+            } else if (kind == NAME) {
+                String id = name;
+                next();
+                if (kind == OP && op == '(') {
+                    call(id);
+                } else if (kind == OP && op == '=') {
+                    if (id.equals("pi") || id.equals("e")) throw new IllegalArgumentException("cannot assign to " + id);
+                    next();
+                    expression(0);
+                    emit(STORE, slot(id));
+                } else if (id.equals("pi") || id.equals("e")) {
+                    consts.add(id.equals("pi") ? Math.PI : Math.E);
+                    emit(CONST, consts.size() - 1);
+                } else {
+                    emit(LOAD, slot(id));
+                }
+            } else {
+                throw unexpected();
+            }
+        }
+
+        private void call(String id) {
+            int fn = Arrays.asList(FUNCTIONS).indexOf(id);
+            if (fn < 0) throw new IllegalArgumentException("unknown function " + id);
+            next();
+            int args = 0;
+            if (kind != OP || op != ')') {
+                while (true) {
+                    expression(0);
+                    args++;
+                    if (kind == OP && op == ',') { next(); continue; }
+                    break;
+                }
+            }
+            if (kind != OP || op != ')') throw kind == END ? new IllegalArgumentException("missing ')'") : unexpected();
+            next();
+            if (args != ARITY[fn]) throw new IllegalArgumentException(id + " takes " + ARITY[fn] + (ARITY[fn] == 1 ? " argument" : " arguments"));
+            emit(CALL, fn);
+            depth -= ARITY[fn] - 1;
+        }
+
+        private int slot(String id) {
+            int i = names.indexOf(id);
+            if (i < 0) { names.add(id); i = names.size() - 1; }
+            return i;
+        }
+
+        private void emit(int opcode, int operand) {
+            emit(opcode);
+            code[length++] = operand;
+        }
+
+        private void emit(int opcode) {
+            if (length + 2 > code.length) code = Arrays.copyOf(code, code.length * 2);
+            code[length++] = opcode;
+            switch (opcode) {
+                case CONST, LOAD -> maxDepth = Math.max(maxDepth, ++depth);
+                case ADD, SUB, MUL, DIV, MOD, POW -> depth--;
+                default -> {}
+            }
+        }
+    }
+
+    /* ---------------------------------------------------- */
+    /*                  BUILT-IN COMMANDS                   */
+    /* ---------------------------------------------------- */
+    private static final Map<String, java.util.function.Consumer<Shell.ParsedCommand>> BUILTINS = new HashMap<>();
+
+    static {
+        BUILTINS.put("ls",      c -> ls(c));
+        BUILTINS.put("cd",      c -> cd(c));
+        BUILTINS.put("pwd",     c -> GUI.instance.appendOutput(VFS.instance.cwd.path() + "\n"));
+        BUILTINS.put("mkdir",   c -> c.args.forEach(VFS.instance::mkdir));
+        BUILTINS.put("rmdir",   c -> rmdir(c));
+        BUILTINS.put("touch",   c -> c.args.forEach(p -> VFS.instance.touch(p, "")));
+        BUILTINS.put("rm",      c -> rm(c));
+        BUILTINS.put("mv",      c -> mv(c));
+        BUILTINS.put("cat",     c -> cat(c));
+        BUILTINS.put("head",    c -> head(c));
+        BUILTINS.put("true",    c -> {});
+        BUILTINS.put("false",   c -> c.result = CompletableFuture.completedFuture(1));
+        BUILTINS.put("test",    c -> test(c));
+        BUILTINS.put("[",       c -> test(c));
+        BUILTINS.put("echo",    c -> GUI.instance.appendOutput(String.join(" ", c.args) + "\n"));
+        BUILTINS.put("chmod",   c -> chmod(c));
+        BUILTINS.put("chown",   c -> chown(c));
+        BUILTINS.put("su",      c -> su(c));
+        BUILTINS.put("whoami",  c -> GUI.instance.appendOutput(UserSystem.instance.currentUser + "\n"));
+        BUILTINS.put("ps",      c -> ps(c));
+        BUILTINS.put("top",     c -> top(c));
+        BUILTINS.put("kill",    c -> kill(c));
+        BUILTINS.put("jobs",    c -> GUI.instance.shell.listJobs(c.args.contains("-l")));
+        BUILTINS.put("fg",      c -> c.result = GUI.instance.shell.fg(c.args));
+        BUILTINS.put("bg",      c -> c.result = CompletableFuture.completedFuture(GUI.instance.shell.bg(c.args)));
+        BUILTINS.put("nice",    c -> nice(c));
+        BUILTINS.put("renice",  c -> renice(c));
+        BUILTINS.put("wait",    c -> c.result = GUI.instance.shell.waitFor(c.args));
+        BUILTINS.put("clear",   c -> Kernel.clearScreen());
+        BUILTINS.put("scrollback", c -> scrollback(c));
+        BUILTINS.put("help",    c -> help());
+        BUILTINS.put("exit",    c -> System.exit(0));
+        BUILTINS.put("reboot",  c -> Kernel.reboot());
+        BUILTINS.put("shutdown",c -> Kernel.shutdown());
+        BUILTINS.put("fetch",   c -> fetch(c));
+        BUILTINS.put("gui",     c -> GUI.instance.showGUIMode());
+        BUILTINS.put("wifiscan", c -> wifiscan(c));
+        BUILTINS.put("wifi",    c -> wifi(c));
+        BUILTINS.put("calc",    c -> calc(c));
+        BUILTINS.put("3d",      c -> render3DCube(c));
+        BUILTINS.put("view",    c -> view(c));
+        BUILTINS.put("fsstress", c -> fsstress(c));
+        BUILTINS.put("sync",    c -> VFS.saveFilesystem());
+        BUILTINS.put("checkpoint", c -> checkpoint());
+        BUILTINS.put("grep",    c -> grep(c));
+        BUILTINS.put("find",    c -> find(c));
+        BUILTINS.put("xargs",   c -> xargs(c));
+        BUILTINS.put("parallel", c -> parallel(c));
+        BUILTINS.put("fsbench", c -> fsbench(c));
+        BUILTINS.put("scriptbench", c -> scriptbench(c));
+        BUILTINS.put("parsebench", c -> parsebench(c));
+    }
+
+    // 3d [COLSxROWS] [-f FPS] — a shaded cube turning at a fixed frame rate
+    private static final float C = 0.57735026f;                 // a cube inside the unit sphere
+    private static final float[] CUBE_VERTICES = {              // vertex i has x, y, z > 0 where bits 0, 1, 2 are set
+        -C, -C, -C,   C, -C, -C,   -C, C, -C,   C, C, -C,
+        -C, -C, C,    C, -C, C,    -C, C, C,    C, C, C
+    };
+    private static final int[] CUBE_FACES = {
+        1, 3, 7,  1, 7, 5,      0, 4, 6,  0, 6, 2,              // +x, -x
+        2, 6, 7,  2, 7, 3,      0, 1, 5,  0, 5, 4,              // +y, -y
+        4, 5, 7,  4, 7, 6,      0, 2, 3,  0, 3, 1               // +z, -z
+    };
+
+    private static void render3DCube(Shell.ParsedCommand c) {
+        int width = 80, height = 40, fps = 30;
+        try {
+            for (int i = 0; i < c.args.size(); i++) {
+                String a = c.args.get(i);
+                if (a.equals("-f")) {
+                    fps = Integer.parseInt(c.args.get(++i));
+                } else {
+                    int[] size = screenSize(a);
+                    width = size[0];
+                    height = size[1];
+                }
+            }
+            if (fps < 1 || fps > 240) throw new IllegalArgumentException();
+        } catch (RuntimeException e) {
+            Stdio.current().printErr("usage: 3d [COLSxROWS] [-f FPS]   (8x4 to 1000x500, 1 to 240 fps)\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
+        }
+        GUI.instance.appendOutput(ANSI.BOLD + "3D Rotating Cube (type 'exit' to stop)\n" + ANSI.RESET);
+        Rasterizer raster = new Rasterizer(width, height);
+        raster.mesh(CUBE_VERTICES, CUBE_FACES);
+        animate(raster, fps, "Cube stopped");
+    }
+
+    private static int[] screenSize(String a) {
+        int x = a.indexOf('x');
+        int[] size = { Integer.parseInt(a.substring(0, x)), Integer.parseInt(a.substring(x + 1)) };
+        if (size[0] < 8 || size[1] < 4 || size[0] > 1000 || size[1] > 500) throw new IllegalArgumentException();
+        return size;
+    }
+
+    /* Shows raster full screen, turning its mesh, until 'exit'. Frames come
+     * from a clock of their own at a fixed rate, with the rate and frame
+     * times on the last row. */
+    private static void animate(Rasterizer raster, int fps, String stopped) {
+        // Remove old listeners
+        ActionListener[] listeners = GUI.instance.inputField.getActionListeners();
+        for (ActionListener al : listeners) GUI.instance.inputField.removeActionListener(al);
+
+        int width = raster.width, height = raster.height;
+        Terminal screen = new Terminal(width, height + 1);
+        FrameStats stats = new FrameStats();
+        String status = String.format("\033[%d;1H%dx%d  ", height + 1, width, height);
+        ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "3d");
+            t.setDaemon(true);
+            return t;
+        });
+        SwingUtilities.invokeLater(() -> GUI.instance.showTerminal(screen));
+
+        GUI.instance.inputField.addActionListener(e -> {
+            String input = GUI.instance.inputField.getText().trim();
+            if (input.equalsIgnoreCase("exit") || input.equalsIgnoreCase("quit")) {
+                clock.shutdownNow();
+                GUI.instance.setupTextMode();
+                GUI.instance.appendOutput(stopped + ": " + stats.summary() + "\n");
+            }
+            GUI.instance.inputField.setText("");
+        });
+
+        // the angles come from the frame number, so nothing accumulates; a late frame delays the next, never overlaps it
+        long[] n = { 0 };
+        clock.scheduleAtFixedRate(() -> {
+            long t0 = System.nanoTime();
+            double t = (double) n[0]++ / fps;
+            screen.write(raster.render(t * 0.6, t * 1.4, 3f));
+            stats.frame(System.nanoTime() - t0);
+            if (n[0] % fps == 1) screen.write(status + stats.line() + "  • type 'exit' to stop" + ANSI.ERASE_LINE);
+        }, 0, 1_000_000_000L / fps, TimeUnit.NANOSECONDS);
+    }
+
+    // view [COLSxROWS] [-f FPS] [-2] [-b FRAMES] FILE.obj — an OBJ model from the VFS, turning;
+    // -2 draws the backs of faces too, -b renders FRAMES off screen and reports throughput instead
+    private static void view(Shell.ParsedCommand c) {
+        int width = 80, height = 40, fps = 30, bench = 0;
+        boolean twoSided = false;
+        String path = null;
+        try {
+            for (int i = 0; i < c.args.size(); i++) {
+                String a = c.args.get(i);
+                switch (a) {
+                    case "-f" -> fps = Integer.parseInt(c.args.get(++i));
+                    case "-b" -> bench = Integer.parseInt(c.args.get(++i));
+                    case "-2" -> twoSided = true;
+                    default -> {
+                        if (a.matches("\\d+x\\d+")) {
+                            int[] size = screenSize(a);
+                            width = size[0];
+                            height = size[1];
+                        } else if (path == null) {
+                            path = a;
+                        } else {
+                            throw new IllegalArgumentException();
+                        }
+                    }
+                }
+            }
+            if (path == null || fps < 1 || fps > 240 || bench < 0) throw new IllegalArgumentException();
+        } catch (RuntimeException e) {
+            Stdio.current().printErr("usage: view [COLSxROWS] [-f FPS] [-2] [-b FRAMES] FILE.obj\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
+        }
+        Optional<VFS.FileNode> n = VFS.instance.resolvePath(path);
+        if (!n.isPresent() || n.get().isDirectory) {
+            Stdio.current().printErr("view: " + path + ": " + (n.isPresent() ? "Is a directory" : "No such file or directory") + "\n");
+            c.result = CompletableFuture.completedFuture(1);
+            return;
+        }
+        boolean cached = Mesh.cached(n.get());
+        long t0 = System.nanoTime();
+        Mesh mesh;
+        try {
+            mesh = Mesh.of(n.get());
+        } catch (IllegalArgumentException e) {
+            Stdio.current().printErr("view: " + path + ": " + e.getMessage() + "\n");
+            c.result = CompletableFuture.completedFuture(1);
+            return;
+        }
+        String info = String.format("%s: %d vertices, %d triangles, %s in %.1f ms%n", path,
+                mesh.vertexCount(), mesh.faceCount(), cached ? "cached" : "parsed", (System.nanoTime() - t0) / 1e6);
+        Rasterizer raster = new Rasterizer(width, height);
+        raster.mesh(mesh.vertices, mesh.faces);
+        raster.twoSided = twoSided;
+        if (bench == 0) {
+            GUI.instance.appendOutput(info);
+            animate(raster, fps, "View stopped");
+            return;
+        }
+
+        for (int i = 0; i < Math.min(bench, 20); i++) raster.render(i * 0.02, i * 0.05, 3f);     // warm up
+        long drawn = 0;
+        t0 = System.nanoTime();
+        for (int i = 0; i < bench; i++) {
+            MythProcess.checkSignals();
+            double t = i / 30.0;
+            raster.render(t * 0.6, t * 1.4, 3f);
+            drawn += raster.facesDrawn();
+        }
+        double secs = (System.nanoTime() - t0) / 1e9;
+        GUI.instance.appendOutput(info + String.format("%d frames at %dx%d in %.2fs: %.1f fps, %.3f ms/frame, %d of %d faces drawn per frame, %.1f M faces/s%n",
+                bench, width, height, secs, bench / secs, secs * 1e3 / bench, drawn / bench, mesh.faceCount(),
+                (double) bench * mesh.faceCount() / secs / 1e6));
+    }
+
+    // Text Calculator: calc EXPR prints one value, plain calc reads lines until 'exit'.
+    // Variables live as long as the session, shared by both.
+    private static final Calc.Env calcVars = new Calc.Env();
+
+    private static void calc(Shell.ParsedCommand c) {
+        if (!c.args.isEmpty()) {
+            String result = Calc.evaluate(String.join(" ", c.args), calcVars);
+            GUI.instance.appendOutput(result + "\n");
+            if (result.startsWith("Error")) c.result = CompletableFuture.completedFuture(1);
+            return;
+        }
+        GUI.instance.appendOutput(ANSI.BOLD + "mythOS Calculator (type 'exit' to quit)\n" + ANSI.RESET);
+        GUI.instance.appendOutput("Supports: + - * / % ^ ! ( ), sin cos tan sqrt ln log exp abs min max …, pi e\n"
+                + "x = 2 sets a variable, ans is the last result\n> ");
+
+        ActionListener[] old = GUI.instance.inputField.getActionListeners();
+        for (ActionListener al : old) GUI.instance.inputField.removeActionListener(al);
+
+        GUI.instance.inputField.addActionListener(e -> {
+            String input = GUI.instance.inputField.getText().trim();
+            GUI.instance.appendOutput(input + "\n");
+
+            if (input.equalsIgnoreCase("exit") || input.equalsIgnoreCase("quit")) {
+                GUI.instance.appendOutput("Calculator closed.\n");
+                GUI.instance.setupTextMode();
+                return;
+            }
+
+            String result = Calc.evaluate(input, calcVars);
+            GUI.instance.appendOutput(ANSI.GREEN + " = " + result + ANSI.RESET + "\n> ");
+            GUI.instance.inputField.setText("");
+        });
+    }
+
+    // Other commands (unchanged)
+    private static void wifiscan(Shell.ParsedCommand c) { /* ... */ }
+    private static void wifi(Shell.ParsedCommand c) { /* ... */ }
+
+    // Children are kept sorted, so listing is a straight walk of the index.
+    private static void ls(Shell.ParsedCommand c) {
+        boolean longFormat = false, all = false;
+        java.util.List<String> paths = new java.util.ArrayList<>();
+        for (String a : c.args) {
+            if (a.startsWith("-") && a.length() > 1) {
+                longFormat |= a.indexOf('l') > 0;
+                all |= a.indexOf('a') > 0;
+            } else {
+                paths.add(a);
+            }
+        }
+        if (paths.isEmpty()) paths.add(".");
+        java.text.SimpleDateFormat date = new java.text.SimpleDateFormat("MMM dd HH:mm");
+        StringBuilder out = new StringBuilder();
+        int status = 0;
+        for (String p : paths) {
+            Optional<VFS.FileNode> n = VFS.instance.resolvePath(p);
+            if (!n.isPresent()) {
+                Stdio.current().printErr("ls: cannot access '" + p + "': No such file or directory\n");
+                status = 2;
+                continue;
+            }
+            if (paths.size() > 1 && n.get().isDirectory) out.append(p).append(":\n");
+            Collection<VFS.FileNode> entries = n.get().isDirectory ? n.get().children.values() : java.util.List.of(n.get());
+            int col = 0;
+            for (VFS.FileNode e : entries) {
+                if (!all && e.name.startsWith(".")) continue;
+                String name = e.isDirectory ? ANSI.BLUE + e.name + ANSI.RESET : e.name;
+                if (longFormat) {
+                    out.append(String.format("%s %-8s %-8s %8d %s ", e.modeString(), e.owner, e.group, e.size,
+                            date.format(new Date(e.modified)))).append(name).append('\n');
+                } else {
+                    out.append(name).append("  ");
+                    if (++col % 6 == 0) out.append('\n');
+                }
+            }
+            if (!longFormat && col % 6 != 0) out.append('\n');
+        }
+        GUI.instance.appendOutput(out.toString());
+        c.result = CompletableFuture.completedFuture(status);
+    }
+    private static void cd(Shell.ParsedCommand c) { /* ... */ }
+    // Streams each file, or stdin when none is named, to stdout in blocks.
+    private static void cat(Shell.ParsedCommand c) {
+        Stdio io = Stdio.current();
+        try {
+            if (c.args.isEmpty()) io.in.transferTo(io.out);
+            for (String p : c.args) {
+                Optional<VFS.FileNode> n = VFS.instance.resolvePath(p);
+                if (!n.isPresent()) io.printErr("cat: " + p + ": No such file or directory\n");
+                else if (n.get().isDirectory) io.printErr("cat: " + p + ": Is a directory\n");
+                else try (InputStream in = n.get().openStream()) { in.transferTo(io.out); }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Copies up to N lines and returns; leaving early closes stdin, which stops the writer upstream.
+    private static void head(Shell.ParsedCommand c) {
+        int lines = 10;
+        java.util.List<String> paths = new java.util.ArrayList<>();
+        try {
+            for (int i = 0; i < c.args.size(); i++) {
+                String a = c.args.get(i);
+                if (a.equals("-n") && i + 1 < c.args.size()) lines = Integer.parseInt(c.args.get(++i));
+                else if (a.startsWith("-") && a.length() > 1) lines = Integer.parseInt(a.substring(1));
+                else paths.add(a);
+            }
+        } catch (NumberFormatException e) {
+            Stdio.current().printErr("usage: head [-n LINES] [FILE...]\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
+        }
+        Stdio io = Stdio.current();
+        try {
+            if (paths.isEmpty()) copyLines(io.in, io.out, lines);
+            for (String p : paths) {
+                Optional<VFS.FileNode> n = VFS.instance.resolvePath(p);
+                if (!n.isPresent() || n.get().isDirectory) { io.printErr("head: cannot open '" + p + "' for reading\n"); continue; }
+                if (paths.size() > 1) io.print("==> " + p + " <==\n");
+                try (InputStream in = n.get().openStream()) { copyLines(in, io.out, lines); }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void copyLines(InputStream in, OutputStream out, int lines) throws IOException {
+        byte[] buf = new byte[8192];
+        for (int n; lines > 0 && (n = in.read(buf)) > 0; ) {
+            int end = 0;
+            while (end < n && lines > 0) if (buf[end++] == '\n') lines--;
+            out.write(buf, 0, end);
+        }
+    }
+
+    private static void rmdir(Shell.ParsedCommand c) {
+        int status = 0;
+        for (String path : c.args) {
+            Optional<VFS.FileNode> n = VFS.instance.resolvePath(path);
+            String err = !n.isPresent() ? "No such file or directory"
+                    : !n.get().isDirectory ? "Not a directory"
+                    : !n.get().children.isEmpty() ? "Directory not empty" : null;
+            if (err == null) { VFS.instance.rm(path); continue; }
+            Stdio.current().printErr("rmdir: '" + path + "': " + err + "\n");
+            status = 1;
+        }
+        c.result = CompletableFuture.completedFuture(status);
+    }
+
+    private static void rm(Shell.ParsedCommand c) {
+        int status = 0;
+        for (String path : c.args) {
+            Optional<VFS.FileNode> n = VFS.instance.resolvePath(path);
+            if (n.isPresent() && n.get().isDirectory) {
+                Stdio.current().printErr("rm: cannot remove '" + path + "': Is a directory\n");
+                status = 1;
+            } else VFS.instance.rm(path);
+        }
+        c.result = CompletableFuture.completedFuture(status);
+    }
+
+    /* Literal patterns of three or more characters are narrowed through the
+     * trigram index; regexes and short literals scan in parallel. */
+    private static void grep(Shell.ParsedCommand c) {
+        boolean ignoreCase = false, lineNumbers = false, filesOnly = false, fixed = false;
+        String pattern = null;
+        java.util.List<String> paths = new java.util.ArrayList<>();
+        for (String a : c.args) {
+            if (pattern == null && a.startsWith("-") && a.length() > 1) {
+                ignoreCase |= a.indexOf('i') > 0;
+                lineNumbers |= a.indexOf('n') > 0;
+                filesOnly |= a.indexOf('l') > 0;
+                fixed |= a.indexOf('F') > 0;
+            } else if (pattern == null) {
+                pattern = a;
+            } else {
+                paths.add(a);
+            }
+        }
+        if (pattern == null) {
+            Stdio.current().printErr("usage: grep [-i] [-n] [-l] [-F] PATTERN [PATH...]\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
+        }
+
+        boolean literal = fixed || pattern.chars().noneMatch(ch -> ".[]()*+?{}|^$\\".indexOf(ch) >= 0);
+        java.util.function.Predicate<String> match;
+        if (literal) {
+            String needle = ignoreCase ? pattern.toLowerCase() : pattern;
+            boolean lower = ignoreCase;
+            match = line -> (lower ? line.toLowerCase() : line).contains(needle);
+        } else {
+            java.util.regex.Pattern re;
+            try {
+                re = java.util.regex.Pattern.compile(pattern, ignoreCase ? java.util.regex.Pattern.CASE_INSENSITIVE : 0);
+            } catch (java.util.regex.PatternSyntaxException e) {
+                Stdio.current().printErr("grep: invalid pattern: " + e.getDescription() + "\n");
+                c.result = CompletableFuture.completedFuture(2);
+                return;
+            }
+            match = line -> re.matcher(line).find();
+        }
+        Stdio io = Stdio.current();
+        if (paths.isEmpty() && io.pipedIn()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(io.in, StandardCharsets.UTF_8));
+            try {
+                int lineNo = 0;
+                for (String line; (line = in.readLine()) != null; ) {
+                    lineNo++;
+                    if (!match.test(line)) continue;
+                    if (filesOnly) { io.print("(standard input)\n"); break; }
+                    io.print((lineNumbers ? lineNo + ":" : "") + line + "\n");
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
         }
+        if (paths.isEmpty()) paths.add("/");
 
-        void switchUser(String user) {
-            if (!users.containsKey(user)) {
-                GUI.instance.appendOutput("su: user '" + user + "' does not exist\n");
-                return;
+        java.util.List<VFS.FileNode> roots = new java.util.ArrayList<>();
+        for (String p : paths) {
+            Optional<VFS.FileNode> n = VFS.instance.resolvePath(p);
+            if (n.isPresent()) roots.add(n.get());
+            else Stdio.current().printErr("grep: " + p + ": No such file or directory\n");
+        }
+        java.util.List<VFS.FileNode> pool = literal ? VFS.instance.index.candidates(pattern) : null;
+        TreeMap<String, VFS.FileNode> files = new TreeMap<>();
+        if (pool != null) {
+            for (VFS.FileNode n : pool)
+                for (VFS.FileNode r : roots)
+                    if (n == r || n.isUnder(r)) { files.put(n.path(), n); break; }
+        } else {
+            for (VFS.FileNode r : roots) {
+                Deque<VFS.FileNode> stack = new ArrayDeque<>(java.util.List.of(r));
+                while (!stack.isEmpty()) {
+                    VFS.FileNode n = stack.pop();
+                    if (n.isDirectory) stack.addAll(n.children.values());
+                    else files.put(n.path(), n);
+                }
             }
-            currentUser = user;
-            String home = homes.getOrDefault(user, "/home/" + user);
-            VFS.instance.cwd = VFS.instance.resolvePath(home).orElse(VFS.instance.root);
-            GUI.instance.appendOutput("Switched to " + user + "\n");
         }
+        boolean prefix = files.size() > 1 || roots.stream().anyMatch(r -> r.isDirectory);
+        java.util.List<VFS.FileNode> list = new java.util.ArrayList<>(files.values());
+        java.util.List<String> hits = ForkJoinPool.commonPool()
+                .invoke(new GrepTask(list, 0, list.size(), match, lineNumbers, filesOnly, prefix));
+        StringBuilder out = new StringBuilder();
+        for (String h : hits) out.append(h).append('\n');
+        GUI.instance.appendOutput(out.toString());
     }
 
-    /* ---------------------------------------------------- */
-    /*                   PROCESS MANAGER                    */
-    /* ---------------------------------------------------- */
-    static class MythProcess {
-        int pid;
-        String command;
-        MythProcess parent;
-        java.util.List<MythProcess> children = new java.util.ArrayList<>();
-        int status = 0;
-        int exitCode = 0;
-        long start = System.currentTimeMillis();
-        String cwd;
-
-        MythProcess(int pid, String command, String cwd) {
-            this.pid = pid;
-            this.command = command;
-            this.cwd = cwd;
+    // scrollback                         lines kept, the limit and how many were dropped
+    // scrollback -n LINES                keep at most LINES, the screen included
+    // scrollback [-i] [-F] [-c] PATTERN  matching lines with their session line numbers
+    private static void scrollback(Shell.ParsedCommand c) {
+        Scrollback sb = GUI.console.scrollback;
+        boolean ignoreCase = false, fixed = false, count = false;
+        String pattern = null;
+        for (int i = 0; i < c.args.size(); i++) {
+            String a = c.args.get(i);
+            if (pattern == null && a.equals("-n") && i + 1 < c.args.size()) {
+                try {
+                    GUI.console.resize(Math.max(1, Integer.parseInt(c.args.get(++i))));
+                } catch (NumberFormatException e) {
+                    Stdio.current().printErr("scrollback: bad line count: " + c.args.get(i) + "\n");
+                    c.result = CompletableFuture.completedFuture(2);
+                }
+                return;
+            } else if (pattern == null && a.startsWith("-") && a.length() > 1) {
+                ignoreCase |= a.indexOf('i') > 0;
+                fixed |= a.indexOf('F') > 0;
+                count |= a.indexOf('c') > 0;
+            } else if (pattern == null) {
+                pattern = a;
+            }
         }
-    }
-
-    static class ProcessManager {
-        static ProcessManager instance;
-
-        int nextPid = 1000;
-        Map<Integer, MythProcess> procs = new HashMap<>();
-
-        ProcessManager() {
-            MythProcess init = new MythProcess(1, "init", "/");
-            procs.put(1, init);
+        if (pattern == null) {
+            GUI.instance.appendOutput(sb.size() + " lines kept of " + sb.limit() + ", " + sb.dropped() + " dropped\n");
+            return;
         }
 
-        MythProcess fork(MythProcess parent, String cmd) {
-            int pid = nextPid++;
-            MythProcess child = new MythProcess(pid, cmd, VFS.instance.cwd.path());
-            child.parent = parent;
-            parent.children.add(child);
-            procs.put(pid, child);
-            return child;
+        java.util.function.Predicate<String> match;
+        if (fixed) {
+            String needle = ignoreCase ? pattern.toLowerCase() : pattern;
+            boolean lower = ignoreCase;
+            match = line -> (lower ? line.toLowerCase() : line).contains(needle);
+        } else {
+            java.util.regex.Pattern re;
+            try {
+                re = java.util.regex.Pattern.compile(pattern, ignoreCase ? java.util.regex.Pattern.CASE_INSENSITIVE : 0);
+            } catch (java.util.regex.PatternSyntaxException e) {
+                Stdio.current().printErr("scrollback: invalid pattern: " + e.getDescription() + "\n");
+                c.result = CompletableFuture.completedFuture(2);
+                return;
+            }
+            match = line -> re.matcher(line).find();
         }
+        java.util.List<String> lines = new java.util.ArrayList<>(sb.size() + 1);
+        long first = sb.snapshot(lines);
+        StringBuilder out = new StringBuilder();
+        int hits = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            if (!match.test(lines.get(i))) continue;
+            hits++;
+            if (!count) out.append(first + i).append(':').append(lines.get(i)).append('\n');
+        }
+        GUI.instance.appendOutput(count ? hits + "\n" : out.toString());
+        if (hits == 0) c.result = CompletableFuture.completedFuture(1);
+    }
 
-        void exec(MythProcess p, Runnable task) {
-            ExecutorService es = Executors.newSingleThreadExecutor();
-            es.submit(() -> {
-                try { task.run(); p.exitCode = 0; }
-                catch (Exception e) { p.exitCode = 1; }
-                finally { p.status = -1; es.shutdown(); }
-            });
+    // xargs [-P N] [-n N] [-I REPL] [-k] [--halt soon|now] [COMMAND [ARG...]]
+    // Items are the words of stdin (its lines with -I), n per command (default all).
+    private static void xargs(Shell.ParsedCommand c) {
+        int jobs = 1, per = Integer.MAX_VALUE;
+        String repl = null, halt = null;
+        boolean keep = false;
+        int at = 0;
+        try {
+            for (; at < c.args.size() && c.args.get(at).startsWith("-"); at++) {
+                switch (c.args.get(at)) {
+                    case "-P" -> jobs = Integer.parseInt(c.args.get(++at));
+                    case "-n" -> per = Integer.parseInt(c.args.get(++at));
+                    case "-I" -> { repl = c.args.get(++at); per = 1; }
+                    case "-k" -> keep = true;
+                    case "--halt" -> halt = haltMode(c.args.get(++at));
+                    default -> throw new IllegalArgumentException();
+                }
+            }
+            if (jobs < 1 || per < 1) throw new IllegalArgumentException();
+        } catch (RuntimeException e) {
+            Stdio.current().printErr("usage: xargs [-P N] [-n N] [-I REPL] [-k] [--halt soon|now] [COMMAND [ARG...]]\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
         }
+        java.util.List<String> command = at < c.args.size() ? c.args.subList(at, c.args.size()) : java.util.List.of("echo");
+        java.util.List<String> items = new java.util.ArrayList<>();
+        String text = readStdin();
+        if (repl != null) {
+            for (String l : text.split("\n")) if (!l.isBlank()) items.add(l.strip());
+        } else {
+            for (String w : text.trim().split("\\s+")) if (!w.isEmpty()) items.add(w);
+        }
+        int threads = jobs, batch = per;
+        String r = repl, h = halt;
+        boolean k = keep;
+        fanout(c, () -> {
+            int failed = new Fanout(commandLines(command, items, batch, r), threads, k, h).run();
+            return failed == 0 ? 0 : 123;
+        });
+    }
 
-        void kill(int pid, int sig) {
-            MythProcess p = procs.get(pid);
-            if (p != null) {
-                p.status = -1;
-                p.exitCode = sig;
-                procs.remove(pid);
-                GUI.instance.appendOutput("Killed " + pid + "\n");
+    // parallel [-j N] [-k] [--halt soon|now] COMMAND [ARG...] [::: ITEM...]
+    // One command per item, from after ::: or else the lines of stdin; {} stands for
+    // the item, which is appended when there is no {}. Exits with the failure count.
+    private static void parallel(Shell.ParsedCommand c) {
+        int jobs = Runtime.getRuntime().availableProcessors();
+        String halt = null;
+        boolean keep = false;
+        int at = 0;
+        try {
+            for (; at < c.args.size() && c.args.get(at).startsWith("-"); at++) {
+                switch (c.args.get(at)) {
+                    case "-j" -> jobs = Integer.parseInt(c.args.get(++at));
+                    case "-k" -> keep = true;
+                    case "--halt" -> halt = haltMode(c.args.get(++at));
+                    default -> throw new IllegalArgumentException();
+                }
             }
+            if (jobs < 1) throw new IllegalArgumentException();
+        } catch (RuntimeException e) {
+            Stdio.current().printErr("usage: parallel [-j N] [-k] [--halt soon|now] COMMAND [ARG...] [::: ITEM...]\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
         }
+        java.util.List<String> rest = c.args.subList(at, c.args.size());
+        int sep = rest.indexOf(":::");
+        java.util.List<String> command = sep < 0 ? rest : rest.subList(0, sep);
+        java.util.List<String> items = new java.util.ArrayList<>();
+        if (sep >= 0) items.addAll(rest.subList(sep + 1, rest.size()));
+        else for (String l : readStdin().split("\n")) if (!l.isBlank()) items.add(l.strip());
+        if (command.isEmpty()) {
+            Stdio.current().printErr("parallel: no command given\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
+        }
+        int threads = jobs;
+        String h = halt;
+        boolean k = keep;
+        fanout(c, () -> Math.min(101, new Fanout(commandLines(command, items, 1, "{}"), threads, k, h).run()));
+    }
 
-        java.util.List<MythProcess> ps() { return new java.util.ArrayList<>(procs.values()); }
+    private static String haltMode(String arg) {
+        String mode = arg.contains(",") ? arg.substring(0, arg.indexOf(',')) : arg;     // parallel's now,fail=1
+        if (!mode.equals("soon") && !mode.equals("now")) throw new IllegalArgumentException();
+        return mode;
     }
 
-    /* ---------------------------------------------------- */
-    /*                         SHELL                        */
-    /* ---------------------------------------------------- */
-    static class Shell {
-        String prompt = ANSI.CYAN + "%u@%h:%w$ " + ANSI.RESET;
-        java.util.List<String> history = new java.util.ArrayList<>();
-        int historyIndex = -1;
+    private static String readStdin() {
+        Stdio io = Stdio.current();
+        if (!io.pipedIn()) return "";
+        try {
+            return new String(io.in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        void processInput(String line) {
-            if (line.trim().isEmpty()) return;
-            history.add(line);
-            historyIndex = history.size();
-            execute(line);
+    /* One quoted command line per batch of items: each replaces repl in the
+     * words, or, with no repl in them, is appended. */
+    private static java.util.List<String> commandLines(java.util.List<String> command, java.util.List<String> items, int per, String repl) {
+        boolean replaces = repl != null && command.stream().anyMatch(w -> w.contains(repl));
+        java.util.List<String> lines = new java.util.ArrayList<>();
+        for (int i = 0; i < items.size(); i += per) {
+            java.util.List<String> batch = items.subList(i, Math.min(items.size(), i + per));
+            StringJoiner line = new StringJoiner(" ");
+            for (String w : command) line.add(Shell.quote(replaces ? w.replace(repl, batch.get(0)) : w));
+            if (!replaces) for (String item : batch) line.add(Shell.quote(item));
+            lines.add(line.toString());
         }
+        return lines;
+    }
 
-        String getPrompt() {
-            return prompt
-                    .replace("%u", UserSystem.instance.currentUser)
-                    .replace("%h", "mythos")
-                    .replace("%w", VFS.instance.cwd.path().replace("/home/" + UserSystem.instance.currentUser, "~"));
+    /* Runs work as the calling process, or, typed at the prompt, as a child so the
+     * EDT is not held while it runs (and ^C and ^Z reach it). */
+    private static void fanout(Shell.ParsedCommand c, java.util.function.IntSupplier work) {
+        if (Scheduler.current() != null) {
+            c.result = CompletableFuture.completedFuture(work.getAsInt());
+            return;
         }
+        ProcessManager pm = ProcessManager.instance;
+        MythProcess self = pm.current(), p = pm.fork(self, c.raw);
+        pm.exec(p, work);
+        c.result = GUI.instance.shell.track(self, c.raw, java.util.List.of(p), false, pm.collect(p));
+    }
 
-        java.util.List<String> parsePipeline(String line) {
-            java.util.List<String> cmds = new java.util.ArrayList<>();
-            int depth = 0;
-            StringBuilder sb = new StringBuilder();
-            for (char c : line.toCharArray()) {
-                if (c == '|' && depth == 0) {
-                    cmds.add(sb.toString().trim());
-                    sb = new StringBuilder();
-                } else {
-                    if (c == '(' || c == '{' || c == '[') depth++;
-                    if (c == ')' || c == '}' || c == ']') depth--;
-                    sb.append(c);
+    private static void find(Shell.ParsedCommand c) {
+        java.util.List<String> paths = new java.util.ArrayList<>();
+        String name = null;
+        Character type = null;
+        for (int i = 0; i < c.args.size(); i++) {
+            String a = c.args.get(i);
+            String v = i + 1 < c.args.size() ? c.args.get(i + 1) : null;
+            if (a.equals("-name") && v != null) {
+                name = v;
+                i++;
+            } else if (a.equals("-type") && ("f".equals(v) || "d".equals(v))) {
+                type = v.charAt(0);
+                i++;
+            } else if (a.startsWith("-")) {
+                Stdio.current().printErr("usage: find [PATH...] [-name PATTERN] [-type f|d]\n");
+                c.result = CompletableFuture.completedFuture(2);
+                return;
+            } else {
+                paths.add(a);
+            }
+        }
+        if (paths.isEmpty()) paths.add(".");
+        java.util.List<VFS.FileNode> roots = new java.util.ArrayList<>();
+        for (String p : paths) {
+            Optional<VFS.FileNode> n = VFS.instance.resolvePath(p);
+            if (n.isPresent()) roots.add(n.get());
+            else Stdio.current().printErr("find: '" + p + "': No such file or directory\n");
+        }
+        java.util.List<VFS.FileNode> found = new java.util.ArrayList<>();
+        if (name != null) {
+            for (VFS.FileNode n : VFS.instance.index.byName(name))
+                for (VFS.FileNode r : roots)
+                    if (n == r || n.isUnder(r)) { found.add(n); break; }
+        } else {
+            for (VFS.FileNode r : roots) {
+                Deque<VFS.FileNode> stack = new ArrayDeque<>(java.util.List.of(r));
+                while (!stack.isEmpty()) {
+                    VFS.FileNode n = stack.pop();
+                    found.add(n);
+                    if (n.isDirectory) stack.addAll(n.children.values());
                 }
             }
-            if (sb.length() > 0) cmds.add(sb.toString().trim());
-            return cmds;
         }
+        TreeSet<String> out = new TreeSet<>();
+        for (VFS.FileNode n : found)
+            if (type == null || (type == 'd') == n.isDirectory) out.add(n.path());
+        StringBuilder sb = new StringBuilder();
+        for (String p : out) sb.append(p).append('\n');
+        GUI.instance.appendOutput(sb.toString());
+    }
 
-        static class ParsedCommand {
-            String name;
-            java.util.List<String> args = new java.util.ArrayList<>();
-            String inputFile = null;
-            String outputFile = null;
-            boolean append = false;
-            boolean background = false;
-            boolean builtin = false;
-            String raw;
+    // test EXPR / [ EXPR ]: status 0 if true, 1 if false, 2 on a malformed expression.
+    private static void test(Shell.ParsedCommand c) {
+        java.util.List<String> a = new java.util.ArrayList<>(c.args);
+        if (c.name.equals("[")) {
+            if (a.isEmpty() || !a.get(a.size() - 1).equals("]")) {
+                Stdio.current().printErr("[: missing ']'\n");
+                c.result = CompletableFuture.completedFuture(2);
+                return;
+            }
+            a.remove(a.size() - 1);
+        }
+        boolean negate = !a.isEmpty() && a.get(0).equals("!");
+        if (negate) a.remove(0);
+        Boolean r;
+        try {
+            r = switch (a.size()) {
+                case 0 -> false;
+                case 1 -> !a.get(0).isEmpty();
+                case 2 -> switch (a.get(0)) {
+                    case "-e" -> VFS.instance.resolvePath(a.get(1)).isPresent();
+                    case "-f" -> VFS.instance.resolvePath(a.get(1)).map(n -> !n.isDirectory).orElse(false);
+                    case "-d" -> VFS.instance.resolvePath(a.get(1)).map(n -> n.isDirectory).orElse(false);
+                    case "-s" -> VFS.instance.resolvePath(a.get(1)).map(n -> n.size > 0).orElse(false);
+                    case "-z" -> a.get(1).isEmpty();
+                    case "-n" -> !a.get(1).isEmpty();
+                    default -> null;
+                };
+                case 3 -> switch (a.get(1)) {
+                    case "=", "==" -> a.get(0).equals(a.get(2));
+                    case "!=" -> !a.get(0).equals(a.get(2));
+                    case "-eq" -> Long.parseLong(a.get(0)) == Long.parseLong(a.get(2));
+                    case "-ne" -> Long.parseLong(a.get(0)) != Long.parseLong(a.get(2));
+                    case "-lt" -> Long.parseLong(a.get(0)) < Long.parseLong(a.get(2));
+                    case "-le" -> Long.parseLong(a.get(0)) <= Long.parseLong(a.get(2));
+                    case "-gt" -> Long.parseLong(a.get(0)) > Long.parseLong(a.get(2));
+                    case "-ge" -> Long.parseLong(a.get(0)) >= Long.parseLong(a.get(2));
+                    default -> null;
+                };
+                default -> null;
+            };
+        } catch (NumberFormatException e) {
+            Stdio.current().printErr(c.name + ": integer expression expected\n");
+            r = null;
+        }
+        if (r == null && a.size() <= 3 && !a.isEmpty()) Stdio.current().printErr(c.name + ": unknown condition: " + String.join(" ", a) + "\n");
+        c.result = CompletableFuture.completedFuture(r == null ? 2 : r != negate ? 0 : 1);
+    }
 
-            ParsedCommand(String raw) { this.raw = raw; }
+    // The same loop run line by line through the text shell (parse and substitute every
+    // time, as scripts used to) and through a compiled script, cold and then cached.
+    private static void scriptbench(Shell.ParsedCommand c) {
+        int n;
+        try {
+            n = c.args.isEmpty() ? 20000 : Integer.parseInt(c.args.get(0));
+        } catch (NumberFormatException e) {
+            Stdio.current().printErr("usage: scriptbench [ITERATIONS]\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
         }
+        Shell sh = GUI.instance.shell;
+        String[] body = { "x=$1", "test $x -gt 0", "test $x = $1" };
 
-        ParsedCommand parseCommand(String cmd) {
-            ParsedCommand pc = new ParsedCommand(cmd);
-            pc.background = cmd.endsWith(" &");
-            if (pc.background) cmd = cmd.substring(0, cmd.length() - 2).trim();
-
-            java.util.List<String> tokens = new java.util.ArrayList<>();
-            StringBuilder cur = new StringBuilder();
-            boolean inQuote = false;
-            for (char c : cmd.toCharArray()) {
-                if (c == '"' && (cur.length() == 0 || cur.charAt(cur.length()-1) != '\\')) {
-                    inQuote = !inQuote;
-                } else if (c == ' ' && !inQuote) {
-                    if (cur.length() > 0) tokens.add(cur.toString());
-                    cur = new StringBuilder();
-                } else {
-                    cur.append(c);
-                }
+        long t0 = System.nanoTime();
+        for (int i = 1; i <= n; i++) {
+            Map<String, String> vars = Map.of("$1", String.valueOf(i), "$x", String.valueOf(i));
+            for (String line : body) {
+                for (Map.Entry<String, String> e : vars.entrySet()) line = line.replace(e.getKey(), e.getValue());
+                if (!line.startsWith("x=")) sh.execute(line).join();
             }
-            if (cur.length() > 0) tokens.add(cur.toString());
+        }
+        long t1 = System.nanoTime();
 
-            if (tokens.isEmpty()) return null;
+        String src = "#!mythos\nfor i in {1.." + n + "}\ndo\n  x=$i\n  test $x -gt 0\n  test $x = $i\ndone\n";
+        Shell.Script cold = Shell.Script.compile(src);
+        sh.interpretScript(cold, "scriptbench", java.util.List.of());
+        long t2 = System.nanoTime();
+        sh.interpretScript(cold, "scriptbench", java.util.List.of());
+        long t3 = System.nanoTime();
 
-            pc.builtin = BUILTINS.containsKey(tokens.get(0));
+        GUI.instance.appendOutput(String.format(
+                "%d iterations x %d lines%n  line by line    %8.1f ms  (%.2f us/line)%n  compiled, cold  %8.1f ms%n  compiled, warm  %8.1f ms  (%.2f us/line)%n",
+                n, body.length, (t1 - t0) / 1e6, (t1 - t0) / 1e3 / (n * body.length),
+                (t2 - t1) / 1e6, (t3 - t2) / 1e6, (t3 - t2) / 1e3 / (n * body.length)));
+    }
 
-            for (int i = 0; i < tokens.size(); i++) {
-                String t = tokens.get(i);
-                if (t.equals(">")) {
-                    if (i + 1 < tokens.size()) pc.outputFile = tokens.get(++i);
-                } else if (t.equals(">>")) {
-                    if (i + 1 < tokens.size()) { pc.outputFile = tokens.get(++i); pc.append = true; }
-                } else if (t.equals("<")) {
-                    if (i + 1 < tokens.size()) pc.inputFile = tokens.get(++i);
-                } else if (pc.name == null) {
-                    pc.name = t;
-                } else {
-                    pc.args.add(t);
-                }
-            }
-            return pc;
+    // Parse throughput on long script lines: warm-up rounds first, so the
+    // measured ones see compiled code, then the mean and spread of the rest.
+    private static void parsebench(Shell.ParsedCommand c) {
+        int lines, width;
+        try {
+            lines = c.args.isEmpty() ? 20000 : Integer.parseInt(c.args.get(0));
+            width = c.args.size() < 2 ? 1000 : Integer.parseInt(c.args.get(1));
+        } catch (NumberFormatException e) {
+            Stdio.current().printErr("usage: parsebench [LINES] [WIDTH]\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
+        }
+        String[] unit = {
+            "grep -i \"needle in $HAY\" /home/user/notes_$i.txt | head -n 10 > /tmp/out_$i",
+            "test -f '/tmp/a file' && echo found\\ it || echo missing",
+            "cat < /tmp/in_$i >> /tmp/log & echo \"done \\$i\"",
+        };
+        String[] src = new String[64];
+        long bytes = 0;
+        for (int k = 0; k < src.length; k++) {
+            StringBuilder sb = new StringBuilder();
+            for (int u = k; sb.length() < width; u++) sb.append(unit[u % unit.length]).append(" ; ");
+            src[k] = sb.append("true").toString();
+            bytes += src[k].length();
         }
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
 
-        void execute(String line) {
-            java.util.List<String> pipeline = parsePipeline(line);
-            MythProcess lastFg = null;
+        int warmup = 5, rounds = 10, tokens = 0;
+        double[] rate = new double[rounds];
+        long alloc = 0;
+        for (int r = -warmup; r < rounds; r++) {
+            long a0 = mx.getThreadAllocatedBytes(tid), t0 = System.nanoTime();
+            for (int i = 0; i < lines; i++) tokens += Shell.Parser.parse(src[i & 63]).items().length;
+            long t = System.nanoTime() - t0;
+            if (r < 0) continue;
+            rate[r] = lines / (t / 1e9);
+            alloc += mx.getThreadAllocatedBytes(tid) - a0;
+        }
+        Arrays.sort(rate);
+        double mean = Arrays.stream(rate).average().orElse(0), mb = mean * (bytes / (double) src.length) / 1e6;
+        GUI.instance.appendOutput(String.format(
+                "%d lines of ~%d chars, %d warm-up + %d measured rounds (%d items)%n" +
+                "  %,.0f lines/s  (min %,.0f, max %,.0f)%n  %.1f MB/s, %.2f us/line, %,d bytes allocated/line%n",
+                lines, bytes / src.length, warmup, rounds, tokens, mean, rate[0], rate[rounds - 1],
+                mb, 1e6 / mean, alloc / ((long) lines * rounds)));
+    }
 
-            for (int i = 0; i < pipeline.size(); i++) {
-                String cmd = pipeline.get(i);
-                ParsedCommand pc = parseCommand(cmd);
-                if (pc == null) continue;
+    private static void checkpoint() {
+        long t0 = System.nanoTime();
+        VFS.instance.checkpoint().thenAccept(n -> Kernel.log(String.format(
+                "checkpoint: %d nodes written in %.1f ms%n", n, (System.nanoTime() - t0) / 1e6)));
+    }
 
-                if (pc.builtin) {
-                    if (pc.background) {
-                        GUI.instance.appendOutput("Background not allowed for builtin: " + pc.name + "\n");
-                        continue;
+    // Hammers /tmp/fsstress from many threads, then checks tree invariants.
+    private static void fsstress(Shell.ParsedCommand c) {
+        int threads, ops;
+        try {
+            threads = c.args.size() > 0 ? Integer.parseInt(c.args.get(0)) : 8;
+            ops = c.args.size() > 1 ? Integer.parseInt(c.args.get(1)) : 5000;
+        } catch (NumberFormatException e) {
+            Stdio.current().printErr("usage: fsstress [THREADS] [OPS]\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
+        }
+        VFS vfs = VFS.instance;
+        String base = "/tmp/fsstress";
+        vfs.quietly(() -> { vfs.rm(base); vfs.mkdir(base); });
+        byte[] line = "stress\n".getBytes(StandardCharsets.UTF_8);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        java.util.List<Future<?>> done = new java.util.ArrayList<>();
+        long t0 = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            done.add(pool.submit(() -> vfs.quietly(() -> {
+                java.util.concurrent.ThreadLocalRandom r = java.util.concurrent.ThreadLocalRandom.current();
+                for (int i = 0; i < ops; i++) {
+                    String dir = base + (r.nextBoolean() ? "" : "/d" + r.nextInt(8));
+                    String name = dir + "/f" + r.nextInt(32);
+                    switch (r.nextInt(7)) {
+                        case 0 -> vfs.touch(name, "v" + i);
+                        case 1 -> vfs.resolvePath(name).ifPresent(f -> vfs.append(f, line, 0, line.length));
+                        case 2 -> vfs.rm(name);
+                        case 3 -> vfs.rename(name, base + "/d" + r.nextInt(8) + "/f" + r.nextInt(32));
+                        case 4 -> vfs.mkdir(base + "/d" + r.nextInt(8));
+                        default -> vfs.resolvePath(name).ifPresent(VFS.FileNode::content);
                     }
-                    runBuiltin(pc);
-                } else {
-                    MythProcess proc = ProcessManager.instance.fork(
-                            ProcessManager.instance.procs.get(1), pc.raw);
-                    if (i == pipeline.size() - 1 && !pc.background) lastFg = proc;
-                    ProcessManager.instance.exec(proc, () -> runExternal(pc));
                 }
-            }
-            if (lastFg != null) waitFor(lastFg);
+            })));
+        }
+        try {
+            for (Future<?> f : done) f.get();
+        } catch (Exception e) {
+            GUI.instance.appendOutput(ANSI.RED + "fsstress: worker failed: " + e + ANSI.RESET + "\n");
+        } finally {
+            pool.shutdown();
         }
+        double secs = (System.nanoTime() - t0) / 1e9;
 
-        void waitFor(MythProcess p) {
-            while (p.status == 0) {
-                try { Thread.sleep(10); } catch (Exception ignored) {}
+        int[] nodes = {0}, broken = {0};
+        vfs.resolvePath(base).ifPresent(root -> {
+            Deque<VFS.FileNode> stack = new ArrayDeque<>(java.util.List.of(root));
+            while (!stack.isEmpty()) {
+                VFS.FileNode d = stack.pop();
+                for (Map.Entry<String, VFS.FileNode> e : d.children.entrySet()) {
+                    VFS.FileNode n = e.getValue();
+                    nodes[0]++;
+                    if (n.parent != d || !n.name.equals(e.getKey())) broken[0]++;
+                    if (!n.isDirectory && n.size != n.data.length()) broken[0]++;
+                    if (vfs.resolvePath(n.path()).orElse(null) != n) broken[0]++;
+                    if (n.isDirectory) stack.push(n);
+                }
             }
-        }
+        });
+        GUI.instance.appendOutput(String.format("fsstress: %d threads x %d ops in %.2fs (%.0f ops/s), %d nodes, %s%n",
+                threads, ops, secs, threads * ops / secs, nodes[0],
+                broken[0] == 0 ? ANSI.GREEN + "tree consistent" + ANSI.RESET
+                               : ANSI.RED + broken[0] + " inconsistencies" + ANSI.RESET));
+        vfs.quietly(() -> vfs.rm(base));
+    }
 
-        void runBuiltin(ParsedCommand pc) {
-            BUILTINS.getOrDefault(pc.name, c -> GUI.instance.appendOutput("Unknown command: " + c.name + "\n")).accept(pc);
+    // Builds the same detached tree with raw and with packed bodies, then saves and reloads each.
+    private static void fsbench(Shell.ParsedCommand c) {
+        int files, kb;
+        try {
+            files = c.args.size() > 0 ? Integer.parseInt(c.args.get(0)) : 200;
+            kb = c.args.size() > 1 ? Integer.parseInt(c.args.get(1)) : 64;
+        } catch (NumberFormatException e) {
+            Stdio.current().printErr("usage: fsbench [FILES] [KB]\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
         }
-
-        void runExternal(ParsedCommand pc) {
-            Optional<VFS.FileNode> script = VFS.instance.resolvePath("/bin/" + pc.name);
-            if (!script.isPresent() || script.get().isDirectory) {
-                GUI.instance.appendOutput(pc.name + ": command not found\n");
-                return;
+        java.util.List<byte[]> bodies = new java.util.ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            StringBuilder b = new StringBuilder();
+            for (int line = 0; b.length() < kb * 1024; line++)
+                b.append(String.format("2024-01-%02d 12:%02d:%02d INFO  [worker-%d] request %d served in %d ms%n",
+                        1 + line % 28, line % 60, (line * 7) % 60, line % 8, i * 100000 + line, (line * 31 + i) % 500));
+            bodies.add(b.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder out = new StringBuilder(String.format("%-8s %12s %12s %10s %10s%n", "mode", "heap", "image", "save ms", "load ms"));
+        for (boolean pack : new boolean[] { false, true }) {
+            VFS.FileNode root = new VFS.FileNode("", null, true);
+            long heap = 0;
+            for (int i = 0; i < files; i++) {
+                VFS.FileNode f = new VFS.FileNode("f" + i, root, false);
+                f.data = new VFS.ChunkStore();
+                f.data.append(bodies.get(i), 0, bodies.get(i).length);
+                if (pack) f.data.pack();
+                f.size = f.data.length();
+                heap += f.data.footprint();
+                root.putChild(f);
             }
-            String code = script.get().content;
-            if (!code.startsWith("#!mythos")) {
-                GUI.instance.appendOutput(pc.name + ": not a mythOS script\n");
-                return;
+            try {
+                Path tmp = Files.createTempFile("fsbench", ".img");
+                try {
+                    long t0 = System.nanoTime();
+                    VFS.FsImage.write(new VFS.Snapshot(0, root), tmp);
+                    long t1 = System.nanoTime();
+                    VFS.FsImage img = VFS.FsImage.read(tmp);
+                    long read = 0;
+                    for (VFS.FileNode f : img.root.children.values()) read += f.content().length();
+                    long t2 = System.nanoTime();
+                    if (read == 0 && files > 0) throw new IOException("image read back empty");
+                    out.append(String.format("%-8s %12d %12d %10.1f %10.1f%n", pack ? "deflate" : "raw",
+                            heap, Files.size(tmp), (t1 - t0) / 1e6, (t2 - t1) / 1e6));
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException e) {
+                out.append(ANSI.RED).append("fsbench: ").append(e.getMessage()).append(ANSI.RESET).append('\n');
             }
-            interpretScript(code, pc.args);
         }
+        GUI.instance.appendOutput(out.toString());
+    }
 
-        void interpretScript(String code, java.util.List<String> args) {
-            Map<String, String> vars = new HashMap<>();
-            for (int i = 0; i < args.size(); i++) vars.put("$" + (i + 1), args.get(i));
-            vars.put("$0", "script");
-
-            for (String line : code.split("\n")) {
-                line = line.trim();
-                if (line.isEmpty() || line.startsWith("#")) continue;
-                line = expandVars(line, vars);
-                execute(line);
-            }
+    private static void mv(Shell.ParsedCommand c) {
+        if (c.args.size() != 2) {
+            Stdio.current().printErr("usage: mv SOURCE DEST\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
         }
+        VFS.instance.rename(c.args.get(0), c.args.get(1));
+    }
 
-        String expandVars(String line, Map<String, String> vars) {
-            for (Map.Entry<String, String> e : vars.entrySet())
-                line = line.replace(e.getKey(), e.getValue());
-            return line;
+    private static void chmod(Shell.ParsedCommand c) {
+        if (c.args.size() < 2) {
+            Stdio.current().printErr("usage: chmod MODE FILE...\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
         }
+        int mode;
+        try { mode = Integer.parseInt(c.args.get(0), 8); }
+        catch (NumberFormatException e) {
+            Stdio.current().printErr("chmod: invalid mode: '" + c.args.get(0) + "'\n");
+            c.result = CompletableFuture.completedFuture(1);
+            return;
+        }
+        for (String p : c.args.subList(1, c.args.size())) VFS.instance.chmod(p, mode);
     }
 
-    /* ---------------------------------------------------- */
-    /*                  BUILT-IN COMMANDS                   */
-    /* ---------------------------------------------------- */
-    private static final Map<String, java.util.function.Consumer<Shell.ParsedCommand>> BUILTINS = new HashMap<>();
+    private static void chown(Shell.ParsedCommand c) {
+        if (c.args.size() < 2) {
+            Stdio.current().printErr("usage: chown OWNER[:GROUP] FILE...\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
+        }
+        String[] og = c.args.get(0).split(":", 2);
+        for (String p : c.args.subList(1, c.args.size())) VFS.instance.chown(p, og[0], og.length > 1 ? og[1] : null);
+    }
+    private static void su(Shell.ParsedCommand c) { /* ... */ }
+    // ps -l adds each process's resource use: CPU time, bytes allocated, wall
+    // time, VFS bytes read and written, and the most it ever had queued in a pipe.
+    private static void ps(Shell.ParsedCommand c) {
+        boolean full = c.args.contains("-l");
+        long now = System.currentTimeMillis();
+        StringBuilder out = new StringBuilder(full
+                ? String.format("%6s %6s %4s %-7s %9s %7s %8s %7s %7s %6s %s%n", "PID", "PPID", "NI", "STAT", "CPU", "ALLOC", "WALL", "READ", "WRITE", "PIPE", "CMD")
+                : String.format("%6s %6s %4s %-8s %8s %s%n", "PID", "PPID", "NI", "STAT", "TIME", "CMD"));
+        ProcessManager pm = ProcessManager.instance;
+        for (MythProcess p : pm.ps()) {
+            MythProcess up = p.parent;
+            Object stat = p.state == MythProcess.State.EXITED ? "ZOMBIE" : p.stopped ? "STOPPED" : p.state;
+            if (full) {
+                out.append(String.format("%6d %6d %4d %-7s %9s %7s %8s %7s %7s %6s %s%n", p.pid, up == null ? 0 : up.pid, p.nice, stat,
+                        String.format("%.3fs", p.cpuNanos() / 1e9), bytes(p.allocatedBytes()), String.format("%.2fs", p.wallMillis() / 1e3),
+                        bytes(p.ioRead), bytes(p.ioWritten), bytes(p.pipePeak), p.command));
+                continue;
+            }
+            long secs = (now - p.start) / 1000;
+            out.append(String.format("%6d %6d %4d %-8s %5d:%02d %s%n", p.pid, up == null ? 0 : up.pid,
+                    p.nice, stat, secs / 60, secs % 60, p.command));
+        }
+        Scheduler s = pm.scheduler;
+        out.append(String.format("%d/%d workers busy, %d queued • %d zombies, %d forked, %d reaped%n",
+                s.active(), Scheduler.WORKERS, s.queued(), pm.zombies(), pm.forks.get(), pm.reaped.get()));
+        GUI.instance.appendOutput(out.toString());
+    }
 
-    static {
-        BUILTINS.put("ls",      c -> ls(c));
-        BUILTINS.put("cd",      c -> cd(c));
-        BUILTINS.put("pwd",     c -> GUI.instance.appendOutput(VFS.instance.cwd.path() + "\n"));
-        BUILTINS.put("mkdir",   c -> c.args.forEach(VFS.instance::mkdir));
-        BUILTINS.put("rmdir",   c -> c.args.forEach(p -> rmdir(p)));
-        BUILTINS.put("touch",   c -> c.args.forEach(p -> VFS.instance.touch(p, "")));
-        BUILTINS.put("rm",      c -> c.args.forEach(p -> rm(p)));
-        BUILTINS.put("cat",     c -> c.args.forEach(p -> cat(p)));
-        BUILTINS.put("echo",    c -> GUI.instance.appendOutput(String.join(" ", c.args) + "\n"));
-        BUILTINS.put("chmod",   c -> chmod(c));
-        BUILTINS.put("chown",   c -> chown(c));
-        BUILTINS.put("su",      c -> su(c));
-        BUILTINS.put("whoami",  c -> GUI.instance.appendOutput(UserSystem.instance.currentUser + "\n"));
-        BUILTINS.put("ps",      c -> ps());
-        BUILTINS.put("kill",    c -> kill(c));
-        BUILTINS.put("clear",   c -> Kernel.clearScreen());
-        BUILTINS.put("help",    c -> help());
-        BUILTINS.put("exit",    c -> System.exit(0));
-        BUILTINS.put("reboot",  c -> Kernel.reboot());
-        BUILTINS.put("shutdown",c -> Kernel.shutdown());
-        BUILTINS.put("fetch",   c -> fetch(c));
-        BUILTINS.put("gui",     c -> GUI.instance.showGUIMode());
-        BUILTINS.put("wifiscan", c -> wifiscan(c));
-        BUILTINS.put("wifi",    c -> wifi(c));
-        BUILTINS.put("calc",    c -> calc(c));
-        BUILTINS.put("3d",      c -> render3DCube());
+    private static String bytes(long n) {
+        if (n < 1024) return String.valueOf(n);
+        int unit = (63 - Long.numberOfLeadingZeros(n)) / 10;
+        return String.format("%.1f%c", n / (double) (1L << (unit * 10)), " KMGTPE".charAt(unit));
     }
 
-    // FIXED: 3D Rotating Cube
-    private static void render3DCube() {
-        GUI.instance.appendOutput(ANSI.BOLD + "3D Rotating Cube (type 'exit' to stop)\n" + ANSI.RESET);
-        GUI.instance.appendOutput("Press Enter to begin...\n");
+    // top [-d SECONDS] [-n FRAMES]: processes by CPU use over each interval. Redraws
+    // until 'q' is typed, or with -n (or when output is not the console) prints
+    // that many frames and exits.
+    private static void top(Shell.ParsedCommand c) {
+        double delay = 1;
+        int frames = -1;
+        try {
+            for (int i = 0; i < c.args.size(); i++) {
+                switch (c.args.get(i)) {
+                    case "-d" -> delay = Double.parseDouble(c.args.get(++i));
+                    case "-n" -> frames = Integer.parseInt(c.args.get(++i));
+                    default -> throw new IllegalArgumentException();
+                }
+            }
+            if (delay <= 0) throw new IllegalArgumentException();
+        } catch (RuntimeException e) {
+            Stdio.current().printErr("usage: top [-d SECONDS] [-n FRAMES]\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
+        }
+        Stdio io = Stdio.current();
+        long period = (long) (delay * 1000);
+        Map<MythProcess, long[]> last = new WeakHashMap<>();
+
+        if (frames >= 0 || io != Stdio.CONSOLE) {
+            CompletableFuture<Integer> done = new CompletableFuture<>();
+            int n = Math.max(1, frames);
+            Runnable[] tick = new Runnable[1];
+            int[] shown = { 0 };
+            tick[0] = () -> {
+                try {
+                    io.print(topFrame(last) + "\n");
+                } catch (RuntimeException e) {          // a closed pipe downstream
+                    done.complete(141);
+                    return;
+                }
+                if (++shown[0] < n) CompletableFuture.delayedExecutor(period, TimeUnit.MILLISECONDS).execute(tick[0]);
+                else done.complete(0);
+            };
+            tick[0].run();
+            c.result = done;
+            return;
+        }
 
-        // Remove old listeners
         ActionListener[] listeners = GUI.instance.inputField.getActionListeners();
         for (ActionListener al : listeners) GUI.instance.inputField.removeActionListener(al);
-
-        AtomicBoolean running = new AtomicBoolean(true);
-        ExecutorService renderer = Executors.newSingleThreadExecutor();
-
+        Terminal screen = new Terminal(100, 40);
+        SwingUtilities.invokeLater(() -> GUI.instance.showTerminal(screen));
+        javax.swing.Timer timer = new javax.swing.Timer((int) period, null);
+        timer.addActionListener(e -> screen.write(ANSI.HOME
+                + (topFrame(last) + "\nType 'q' to quit").replace("\n", ANSI.ERASE_LINE + "\n") + ANSI.ERASE_BELOW));
+        timer.setInitialDelay(0);
         GUI.instance.inputField.addActionListener(e -> {
             String input = GUI.instance.inputField.getText().trim();
-            if (input.equalsIgnoreCase("exit") || input.equalsIgnoreCase("quit")) {
-                running.set(false);
-                renderer.shutdownNow();
-                GUI.instance.appendOutput("\nCube stopped.\n");
+            if (input.equalsIgnoreCase("q") || input.equalsIgnoreCase("exit")) {
+                timer.stop();
                 GUI.instance.setupTextMode();
             }
             GUI.instance.inputField.setText("");
         });
+        timer.start();
+    }
 
-        renderer.submit(() -> {
-            double A = 0, B = 0;
-            int width = 80, height = 40;
-            char[][] buffer = new char[height][width];
-            double[][] zbuffer = new double[height][width];
-            String luminanceChars = ".,-~:;=!*#$@";
-
-            while (running.get()) {
-                for (char[] row : buffer) Arrays.fill(row, ' ');
-                for (double[] row : zbuffer) Arrays.fill(row, 0);
-
-                double cosA = Math.cos(A), sinA = Math.sin(A);
-                double cosB = Math.cos(B), sinB = Math.sin(B);
-
-                for (double x = -1; x <= 1; x += 0.2) {
-                    for (double y = -1; y <= 1; y += 0.2) {
-                        for (double z = -1; z <= 1; z += 0.2) {
-                            double x1 = cosB * x + sinB * z;
-                            double z1 = -sinB * x + cosB * z;
-                            double x2 = cosA * x1 - sinA * y;
-                            double y2 = sinA * x1 + cosA * y;
-                            double z2 = z1 + 5;
-
-                            int xp = (int) (width / 2 + 30 * x2 / z2);
-                            int yp = (int) (height / 2 - 15 * y2 / z2);
-
-                            if (xp >= 0 && xp < width && yp >= 0 && yp < height && z2 > zbuffer[yp][xp]) {
-                                zbuffer[yp][xp] = z2;
-                                int idx = (int) (z2 * 8) % 12;
-                                idx = Math.max(0, Math.min(idx, luminanceChars.length() - 1));
-                                buffer[yp][xp] = luminanceChars.charAt(idx);
-                            }
-                        }
-                    }
+    /* One top screen. last holds each process's CPU time and sample time from
+     * the previous frame; a process seen for the first time is rated over its life. */
+    private static String topFrame(Map<MythProcess, long[]> last) {
+        ProcessManager pm = ProcessManager.instance;
+        long now = System.nanoTime();
+        java.util.List<MythProcess> procs = pm.ps();
+        Map<MythProcess, Double> rate = new HashMap<>();
+        Map<MythProcess, Long> used = new HashMap<>();
+        int running = 0, ready = 0, zombies = 0;
+        synchronized (last) {
+            for (MythProcess p : procs) {
+                long cpu = p.cpuNanos();
+                long[] prev = last.get(p);
+                double busy = prev == null
+                        ? cpu / Math.max(1e6, p.wallMillis() * 1e6)
+                        : (cpu - prev[0]) / Math.max(1.0, now - prev[1]);
+                rate.put(p, busy * 100);
+                used.put(p, cpu);
+                last.put(p, new long[] { cpu, now });
+                switch (p.state) {
+                    case RUNNING -> running++;
+                    case READY -> ready++;
+                    case EXITED -> zombies++;
+                    default -> {}
                 }
-
-                StringBuilder frame = new StringBuilder(ANSI.CLEAR);
-                for (char[] row : buffer) frame.append(row).append('\n');
-                frame.append("Type 'exit' to stop");
-
-                SwingUtilities.invokeLater(() -> {
-                    GUI.instance.outputArea.setText(frame.toString());
-                    GUI.instance.outputArea.setCaretPosition(0);
-                });
-
-                A += 0.07; B += 0.03;
-                try { Thread.sleep(50); } catch (Exception ignored) {}
             }
-        });
+        }
+        procs.sort(Comparator.comparingDouble((MythProcess p) -> rate.get(p)).reversed().thenComparingInt(p -> p.pid));
+        Runtime rt = Runtime.getRuntime();
+        Scheduler s = pm.scheduler;
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("top - %tT  %d processes: %d running, %d ready, %d zombie%n", new Date(), procs.size(), running, ready, zombies));
+        out.append(String.format("workers %d/%d busy, %d queued • heap %s / %s • %d forked%n%n",
+                s.active(), Scheduler.WORKERS, s.queued(), bytes(rt.totalMemory() - rt.freeMemory()), bytes(rt.maxMemory()), pm.forks.get()));
+        out.append(String.format("%6s %4s %-7s %6s %9s %7s %7s %7s %s%n", "PID", "NI", "STAT", "%CPU", "CPU", "ALLOC", "READ", "WRITE", "CMD"));
+        for (MythProcess p : procs) {
+            out.append(String.format("%6d %4d %-7s %6.1f %9s %7s %7s %7s %s%n", p.pid, p.nice,
+                    p.state == MythProcess.State.EXITED ? "ZOMBIE" : p.state, rate.get(p),
+                    String.format("%.3fs", used.get(p) / 1e9), bytes(p.allocatedBytes()), bytes(p.ioRead), bytes(p.ioWritten), p.command));
+        }
+        return out.toString();
     }
 
-    // Text Calculator
-    private static void calc(Shell.ParsedCommand c) {
-        GUI.instance.appendOutput(ANSI.BOLD + "mythOS Calculator (type 'exit' to quit)\n" + ANSI.RESET);
-        GUI.instance.appendOutput("Supports: + - * / ^ % ! (factorial), = to compute\n> ");
-
-        ActionListener[] old = GUI.instance.inputField.getActionListeners();
-        for (ActionListener al : old) GUI.instance.inputField.removeActionListener(al);
-
-        GUI.instance.inputField.addActionListener(e -> {
-            String input = GUI.instance.inputField.getText().trim();
-            GUI.instance.appendOutput(input + "\n");
-
-            if (input.equalsIgnoreCase("exit") || input.equalsIgnoreCase("quit")) {
-                GUI.instance.appendOutput("Calculator closed.\n");
-                GUI.instance.setupTextMode();
+    // kill [-SIGNAL | -s SIGNAL] PID|%JOB...; signals by number or name (-9, -KILL, -SIGKILL).
+    private static void kill(Shell.ParsedCommand c) {
+        Shell sh = GUI.instance.shell;
+        int sig = MythProcess.SIGTERM, status = 0;
+        java.util.List<String> args = c.args;
+        for (int i = 0; i < args.size(); i++) {
+            String a = args.get(i);
+            if (a.equals("-l")) {
+                StringBuilder out = new StringBuilder();
+                for (int n = 1; n < Shell.SIGNALS.length; n++) if (Shell.SIGNALS[n] != null) out.append(n).append(") SIG").append(Shell.SIGNALS[n]).append('\n');
+                GUI.instance.appendOutput(out.toString());
                 return;
             }
-
-            String result = evaluateExpression(input);
-            GUI.instance.appendOutput(ANSI.GREEN + " = " + result + ANSI.RESET + "\n> ");
-            GUI.instance.inputField.setText("");
-        });
+            if (a.startsWith("-") && a.length() > 1) {
+                String name = a.equals("-s") && i + 1 < args.size() ? args.get(++i) : a.substring(1);
+                sig = Shell.signalNumber(name);
+                if (sig < 0) {
+                    Stdio.current().printErr("kill: " + name + ": invalid signal specification\n");
+                    c.result = CompletableFuture.completedFuture(1);
+                    return;
+                }
+            } else if (a.startsWith("%")) {
+                Shell.Job j = sh.job(a, "kill");
+                if (j == null) status = 1;
+                else sh.signal(j, sig);
+            } else {
+                try {
+                    if (!ProcessManager.instance.kill(Integer.parseInt(a), sig)) {
+                        Stdio.current().printErr("kill: (" + a + ") - No such process\n");
+                        status = 1;
+                    }
+                } catch (NumberFormatException e) {
+                    Stdio.current().printErr("kill: " + a + ": arguments must be process or job IDs\n");
+                    status = 1;
+                }
+            }
+        }
+        c.result = CompletableFuture.completedFuture(status);
     }
 
-    private static String evaluateExpression(String expr) {
+    // Raising priority (a negative increment) is reserved for root, as on Unix.
+    private static void nice(Shell.ParsedCommand c) {
+        int delta = 10, at = 0;
         try {
-            expr = expr.replace(" ", "");
-            if (expr.contains("!")) {
-                int n = Integer.parseInt(expr.replace("!", ""));
-                return String.valueOf(factorial(n));
-            }
-            if (expr.contains("^")) {
-                String[] p = expr.split("\\^");
-                double a = Double.parseDouble(evaluateExpression(p[0]));
-                double b = Double.parseDouble(evaluateExpression(p[1]));
-                return String.valueOf(Math.pow(a, b));
-            }
-            if (expr.contains("%")) {
-                String[] p = expr.split("%");
-                double a = Double.parseDouble(evaluateExpression(p[0]));
-                double b = Double.parseDouble(evaluateExpression(p[1]));
-                return String.valueOf(a % b);
-            }
-            if (expr.contains("*")) {
-                String[] p = expr.split("\\*", 2);
-                return String.valueOf(Double.parseDouble(evaluateExpression(p[0])) * Double.parseDouble(evaluateExpression(p[1])));
-            }
-            if (expr.contains("/")) {
-                String[] p = expr.split("/", 2);
-                double b = Double.parseDouble(evaluateExpression(p[1]));
-                if (b == 0) return "Error: Division by zero";
-                return String.valueOf(Double.parseDouble(evaluateExpression(p[0])) / b);
-            }
-            if (expr.contains("+")) {
-                String[] p = expr.split("\\+", 2);
-                return String.valueOf(Double.parseDouble(evaluateExpression(p[0])) + Double.parseDouble(evaluateExpression(p[1])));
-            }
-            if (expr.contains("-") && !expr.startsWith("-")) {
-                String[] p = expr.split("-", 2);
-                return String.valueOf(Double.parseDouble(evaluateExpression(p[0])) - Double.parseDouble(evaluateExpression(p[1])));
-            }
-            return expr;
-        } catch (Exception e) {
-            return "Error";
+            if (c.args.size() > 1 && c.args.get(0).equals("-n")) { delta = Integer.parseInt(c.args.get(1)); at = 2; }
+        } catch (NumberFormatException e) {
+            Stdio.current().printErr("nice: invalid adjustment '" + c.args.get(1) + "'\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
+        }
+        if (at >= c.args.size()) {
+            Stdio.current().printErr("usage: nice [-n N] COMMAND [ARG...]\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
+        }
+        if (delta < 0 && !UserSystem.instance.currentUser.equals("root")) {
+            Stdio.current().printErr("nice: cannot set niceness: Permission denied\n");
+            c.result = CompletableFuture.completedFuture(1);
+            return;
+        }
+        int outer = ProcessManager.niceDelta.get();
+        ProcessManager.niceDelta.set(outer + delta);
+        try {
+            StringBuilder line = new StringBuilder();
+            for (String a : c.args.subList(at, c.args.size())) line.append(Shell.quote(a)).append(' ');
+            c.result = GUI.instance.shell.execute(line + (c.background ? "&" : ""));
+        } finally {
+            ProcessManager.niceDelta.set(outer);
         }
     }
 
-    private static long factorial(int n) {
-        if (n < 0) throw new IllegalArgumentException();
-        long res = 1;
-        for (int i = 2; i <= n; i++) res *= i;
-        return res;
+    private static void renice(Shell.ParsedCommand c) {
+        Stdio io = Stdio.current();
+        if (c.args.size() < 2) {
+            io.printErr("usage: renice N PID...\n");
+            c.result = CompletableFuture.completedFuture(2);
+            return;
+        }
+        int status = 0;
+        try {
+            int nice = Math.max(-20, Math.min(19, Integer.parseInt(c.args.get(0))));
+            for (String a : c.args.subList(1, c.args.size())) {
+                MythProcess p = ProcessManager.instance.get(Integer.parseInt(a));
+                if (p == null) {
+                    io.printErr("renice: " + a + ": No such process\n");
+                    status = 1;
+                    continue;
+                }
+                if (nice < p.nice && !UserSystem.instance.currentUser.equals("root")) {
+                    io.printErr("renice: " + a + ": Permission denied\n");
+                    status = 1;
+                    continue;
+                }
+                ProcessManager.instance.scheduler.renice(p, nice);
+            }
+        } catch (NumberFormatException e) {
+            io.printErr("usage: renice N PID...\n");
+            status = 2;
+        }
+        c.result = CompletableFuture.completedFuture(status);
     }
-
-    // Other commands (unchanged)
-    private static void wifiscan(Shell.ParsedCommand c) { /* ... */ }
-    private static void wifi(Shell.ParsedCommand c) { /* ... */ }
-    private static void ls(Shell.ParsedCommand c) { /* ... */ }
-    private static void cd(Shell.ParsedCommand c) { /* ... */ }
-    private static void rmdir(String path) { /* ... */ }
-    private static void rm(String path) { /* ... */ }
-    private static void cat(String path) { /* ... */ }
-    private static void chmod(Shell.ParsedCommand c) { /* ... */ }
-    private static void chown(Shell.ParsedCommand c) { /* ... */ }
-    private static void su(Shell.ParsedCommand c) { /* ... */ }
-    private static void ps() { /* ... */ }
-    private static void kill(Shell.ParsedCommand c) { /* ... */ }
     private static void fetch(Shell.ParsedCommand c) { /* ... */ }
 
     private static void help() {
         GUI.instance.appendOutput("""
-            ls cd pwd mkdir rmdir touch rm cat echo
-            chmod chown su whoami ps kill clear help
+            ls cd pwd mkdir rmdir touch rm mv cat head echo
+            chmod chown su whoami ps [-l] top kill nice renice clear help
+            jobs [-l] • fg [%N] • bg [%N] • wait [PID|%N...] • kill [-SIG] PID|%N • ^C interrupts, ^Z stops
             exit reboot shutdown fetch gui wifiscan wifi
-            calc → text calculator • 3d → rotating 3D cube
+            calc [EXPR] → calculator: + - * / % ^ ! ( ), functions, pi e, x = 2 • 3d [COLSxROWS] [-f FPS] → rotating 3D cube
+            view [COLSxROWS] [-f FPS] [-2] [-b FRAMES] FILE.obj → turn an OBJ model; -b benchmarks off screen
+            sync → flush the journal • checkpoint → write a full image in the background
+            fsstress [threads] [ops] → concurrent VFS stress test
+            fsbench [files] [kb] → raw vs compressed bodies: memory, save and load time
+            test / [ ] true false • scripts: if/elif/else/fi, while/do/done, for x in … / {1..N}, NAME=value
+            scriptbench [n] → line-by-line vs compiled script timing
+            parsebench [lines] [width] → shell parser throughput on long lines
+            cmd ; cmd • cmd && cmd • cmd || cmd • cmd & • 'quoted' "quoted" \\escaped
+            grep [-inlF] PATTERN [path...] • find [path...] [-name GLOB] [-type f|d]
+            scrollback [-n LINES] • scrollback [-icF] PATTERN → search what has scrolled past
+            xargs [-P N] [-n N] [-I R] [-k] [--halt soon|now] CMD • parallel [-j N] [-k] [--halt …] CMD {} ::: ITEM...
             """);
     }
 
@@ -731,6 +5966,8 @@ public class mythOS {
     static class GUI extends JFrame {
         static GUI instance;
 
+        static final ConsoleSink console = new ConsoleSink();
+
         JTextArea outputArea;
         JTextField inputField;
         JPanel contentPanel;
@@ -748,6 +5985,17 @@ public class mythOS {
             setupTextMode();
         }
 
+        /* A full-screen program's screen in place of the console until the
+         * next setupTextMode; the input line stays. */
+        void showTerminal(Terminal screen) {
+            contentPanel.removeAll();
+            contentPanel.add(screen, BorderLayout.CENTER);
+            contentPanel.add(inputField, BorderLayout.SOUTH);
+            contentPanel.revalidate();
+            contentPanel.repaint();
+            inputField.requestFocus();
+        }
+
         void setupTextMode() {
             contentPanel.removeAll();
 
@@ -770,6 +6018,7 @@ public class mythOS {
             inputField.addActionListener(e -> {
                 String line = inputField.getText().trim();
                 if (!line.isEmpty()) {
+                    shell.notifyJobs();
                     appendOutput(shell.getPrompt() + line + "\n");
                     shell.processInput(line);
                 }
@@ -788,6 +6037,10 @@ public class mythOS {
                     } else if (e.getKeyCode() == KeyEvent.VK_DOWN && shell.historyIndex == shell.history.size() - 1) {
                         shell.historyIndex++;
                         inputField.setText("");
+                    } else if (e.isControlDown() && e.getKeyCode() == KeyEvent.VK_C && inputField.getSelectedText() == null) {
+                        shell.interrupt();
+                    } else if (e.isControlDown() && e.getKeyCode() == KeyEvent.VK_Z) {
+                        shell.suspend();
                     }
                 }
             });
@@ -837,6 +6090,7 @@ public class mythOS {
             display.setEditable(false);
             calcFrame.add(display, BorderLayout.NORTH);
 
+            Calc.Env vars = new Calc.Env();
             JPanel buttonPanel = new JPanel(new GridLayout(5, 4, 5, 5));
             buttonPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
 
@@ -858,10 +6112,9 @@ public class mythOS {
                     if (cmd.equals("C")) {
                         display.setText("0");
                     } else if (cmd.equals("=")) {
-                        String result = evaluateExpression(current);
-                        display.setText(result);
+                        display.setText(Calc.evaluate(current, vars));
                     } else {
-                        if (current.equals("0") && !cmd.matches("[+\\-*/^]")) {
+                        if ((current.equals("0") || current.startsWith("Error")) && !cmd.matches("[+\\-*/^)]")) {
                             display.setText(cmd);
                         } else {
                             display.setText(current + cmd);
@@ -876,16 +6129,20 @@ public class mythOS {
             calcFrame.setVisible(true);
         }
 
+        /* Output of the calling process: its stdout, which is the console unless piped. */
         void appendOutput(String text) {
-            try {
-                Document doc = outputArea.getDocument();
-                doc.insertString(doc.getLength(), text, null);
-                outputArea.setCaretPosition(doc.getLength());
-            } catch (Exception e) { /* ignore */ }
+            Stdio io = Stdio.current();
+            if (io.out instanceof ConsoleStream) appendConsole(text);
+            else io.print(text);
+        }
+
+        /* Safe from any thread; shows up within a frame. */
+        void appendConsole(String text) {
+            console.add(text);
         }
 
         void clearOutput() {
-            outputArea.setText("");
+            console.clear();
         }
     }
 